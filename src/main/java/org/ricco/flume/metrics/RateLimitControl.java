@@ -0,0 +1,14 @@
+package org.ricco.flume.metrics;
+
+/**
+ * Write rate limits of a sink, in rows per second, adjustable at runtime through {@link SqlSinkCounterMBean}.
+ * A limit of 0 disables it.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+public interface RateLimitControl {
+    public long getRateLimit();
+    public void setRateLimit(long rateLimit);
+    public long getTableRateLimit();
+    public void setTableRateLimit(long tableRateLimit);
+}
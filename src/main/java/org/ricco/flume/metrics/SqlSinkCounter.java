@@ -24,6 +24,7 @@ import org.apache.flume.instrumentation.MonitoredCounterGroup;
 public class SqlSinkCounter extends MonitoredCounterGroup implements SqlSinkCounterMBean {
 
 	private long startProcessTime;
+	private volatile RateLimitControl rateLimitControl;
 	
 	private static final String AVERAGE_THROUGHPUT = "average_throughput";
 	private static final String CURRENT_THROUGHPUT = "current_throughput";
@@ -62,6 +63,41 @@ public class SqlSinkCounter extends MonitoredCounterGroup implements SqlSinkCoun
     }
     
     
+    /**
+     * Set the write rate limits exposed by this counter
+     */
+    public void setRateLimitControl(RateLimitControl rateLimitControl) {
+        this.rateLimitControl = rateLimitControl;
+    }
+
+    @Override
+    public long getRateLimit() {
+        RateLimitControl control = rateLimitControl;
+        return control != null ? control.getRateLimit() : 0;
+    }
+
+    @Override
+    public void setRateLimit(long rateLimit) {
+        RateLimitControl control = rateLimitControl;
+        if (control != null) {
+            control.setRateLimit(rateLimit);
+        }
+    }
+
+    @Override
+    public long getTableRateLimit() {
+        RateLimitControl control = rateLimitControl;
+        return control != null ? control.getTableRateLimit() : 0;
+    }
+
+    @Override
+    public void setTableRateLimit(long tableRateLimit) {
+        RateLimitControl control = rateLimitControl;
+        if (control != null) {
+            control.setTableRateLimit(tableRateLimit);
+        }
+    }
+
     public void startProcess(){
     	startProcessTime = System.currentTimeMillis();
     }
@@ -31,4 +31,8 @@ public interface SqlSinkCounterMBean {
     public long getAverageThroughput();
     public long getCurrentThroughput();
     public long getMaxThroughput();
+    public long getRateLimit();
+    public void setRateLimit(long rateLimit);
+    public long getTableRateLimit();
+    public void setTableRateLimit(long tableRateLimit);
 }
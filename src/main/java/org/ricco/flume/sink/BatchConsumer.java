@@ -0,0 +1,661 @@
+package org.ricco.flume.sink;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Event;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.opencsv.CSVParser;
+
+/**
+ * One consumer of the sink channel. Takes a batch of events inside a channel transaction,
+ * parses them and writes them to the database. Holds its own parser state, so every
+ * consumer thread must use its own instance.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+class BatchConsumer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchConsumer.class);
+
+    private final SQLSink sink;
+    /* The held transaction can only be committed by its thread, so only consumers with a thread of their own buffer */
+    private final boolean writeBehind;
+    private CSVParser csvParser;
+    /* Configuration the parser was built for, the sink may swap it on reconfiguration */
+    private SQLSinkHelper parserSqlSinkHelper;
+    private int autoBatchDuration = 0;
+    /* Events taken by the last takeBatch */
+    private int takenEvents;
+    /* The channel refused the last take, its transaction holds no more events */
+    private boolean takeListFull;
+    /* Events a channel transaction holds, learnt from the first full take list */
+    private int takeLimit = Integer.MAX_VALUE;
+    /* Write-behind state: the channel transaction held open across calls and the rows it buffers per table */
+    private Transaction heldTransaction;
+    private long heldSince;
+    private int heldEvents;
+    /* The channel refused to take more events into the held transaction */
+    private boolean heldFull;
+    private final Map<String, List<SinkRow>> buffers = new LinkedHashMap<>();
+    /* Per destination, the events following the committed batches that a longer applied batch already covers */
+    private final Map<HibernateHelper, Integer> coveredEvents = new ConcurrentHashMap<>();
+    /* The same for the batch being written, kept once the channel commits it */
+    private final Map<HibernateHelper, Integer> batchCoveredEvents = new ConcurrentHashMap<>();
+
+    BatchConsumer(SQLSink sink, boolean writeBehind) {
+        this.sink = sink;
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Process a batch of events performing SQL Queries
+     * @return BACKOFF if the channel ran empty, READY otherwise
+     */
+    Status consume() {
+
+        Status status = Status.READY;
+        SQLSinkHelper sqlSinkHelper = sink.getSqlSinkHelper();
+        HibernateHelper hibernateHelper = sink.getHibernateHelper();
+
+        /* Leave the channel alone while the database is down or still connecting */
+        if (!hibernateHelper.isAvailable() || !mirrorsAvailable(sqlSinkHelper, sink.getMirrors())) {
+            return Status.BACKOFF;
+        }
+
+        if (sqlSinkHelper != parserSqlSinkHelper) {
+            if (parserSqlSinkHelper == null || !parserSqlSinkHelper.getDelimiterEntry().equals(sqlSinkHelper.getDelimiterEntry())) {
+                csvParser = new CSVParser(sqlSinkHelper.getDelimiterEntry().charAt(0));
+            }
+            parserSqlSinkHelper = sqlSinkHelper;
+            takeLimit = Integer.MAX_VALUE;
+        }
+
+        if ((writeBehind && sqlSinkHelper.getWriteBehindRows() > 0) || heldTransaction != null) {
+            return consumeWriteBehind(sqlSinkHelper, hibernateHelper);
+        }
+
+        List<SinkRow> lines = new ArrayList<>();
+        List<SinkMirror> mirrors = sink.getMirrors();
+        /* Watermarks need the events, and the first record of each, to skip the events a destination already applied */
+        List<Event> events = null;
+        List<Integer> eventRows = null;
+        if (hasWatermark(hibernateHelper, mirrors)) {
+            events = new ArrayList<>();
+            eventRows = new ArrayList<>();
+        }
+        boolean drained = true;
+
+        Channel channel = sink.getChannel();
+        Transaction transaction = channel.getTransaction();
+        transaction.begin();
+        batchCoveredEvents.clear();
+
+        try {
+            try {
+                drained = takeBatch(channel, lines, events, eventRows, takeLimit);
+                if (takeListFull) {
+                    learnTakeLimit(takenEvents);
+                }
+                if (drained) {
+                    status = Status.BACKOFF;
+                }
+            } catch (IOException e) {
+                LOG.error("Unable to read flume event", e);
+            }
+
+            if(lines.size() > 0) {
+                LOG.info(lines.size() + " lines till " + lines.get(lines.size() - 1));
+
+                if (!write(hibernateHelper, mirrors, lines, events, eventRows)) {
+                    LOG.warn("Database unavailable, returning " + lines.size() + " lines to the channel");
+                    transaction.rollback();
+                    return Status.BACKOFF;
+                }
+            }
+
+            transaction.commit();
+            if (events != null && !events.isEmpty()) {
+                coveredEvents.clear();
+                coveredEvents.putAll(batchCoveredEvents);
+            }
+        } catch (RuntimeException e) {
+            transaction.rollback();
+            throw e;
+        } finally {
+            transaction.close();
+        }
+
+        if(lines.size() > 0) {
+
+            if(!drained) {
+                autoBatchDuration = 0;
+            } else if (sqlSinkHelper.getBatchSize() > 0 && sqlSinkHelper.getMaxDuration() > 0) {
+                double percent = 1.0 - lines.size() * 1.0 / sqlSinkHelper.getBatchSize();
+                if (percent >= 0.5)
+                    autoBatchDuration = (int) (sqlSinkHelper.getMaxDuration() * percent);
+            }
+
+            if (autoBatchDuration > 0) {
+                LOG.info("Wait for " + autoBatchDuration + " milliseconds");
+                sink.awaitStop(autoBatchDuration);
+            }
+        }
+
+        return status;
+    }
+
+    /**
+     * Drain the channel in a tight loop until it runs empty or the batch reaches
+     * its row budget (batch.size) or its byte budget (batch.bytes), whichever comes first.
+     * The byte budget is checked after each event, so a batch may exceed it by at most one event body.
+     * When events is not null the events are kept along, with the index of their first record in eventRows.
+     * Stops without losing the events taken so far when the channel transaction cannot take more.
+     * @return true if the channel ran empty before the batch was full
+     */
+    private boolean takeBatch(Channel channel, List<SinkRow> lines, List<Event> events, List<Integer> eventRows,
+            int maxEvents) throws IOException {
+        SQLSinkHelper sqlSinkHelper = parserSqlSinkHelper;
+        int batchSize = sqlSinkHelper.getBatchSize();
+        long batchBytes = sqlSinkHelper.getBatchBytes();
+        long bytesRead = 0;
+        takenEvents = 0;
+        takeListFull = false;
+
+        while (lines.size() < batchSize && (batchBytes <= 0 || bytesRead < batchBytes) && takenEvents < maxEvents) {
+            Event event;
+            try {
+                event = channel.take();
+            } catch (ChannelException e) {
+                /* e.g. a memory channel whose transactionCapacity is below batch.size */
+                LOG.debug("Channel transaction full after " + takenEvents + " events: " + e.getMessage());
+                takeListFull = true;
+                return false;
+            }
+            if (event == null) {
+                return true;
+            }
+
+            takenEvents++;
+            bytesRead += event.getBody().length;
+            if (events != null) {
+                events.add(event);
+                eventRows.add(lines.size());
+            }
+            parseEvent(event, lines);
+        }
+        return false;
+    }
+
+    /**
+     * Keep later batches within the events a channel transaction holds, so they stop before the channel refuses a take
+     */
+    private void learnTakeLimit(int events) {
+        if (events > 0 && events < takeLimit) {
+            LOG.warn("Channel transactions hold " + events + " events, batches are cut there."
+                    + " Raise the channel transactionCapacity to batch.size to write full batches");
+            takeLimit = events;
+        }
+    }
+
+    /**
+     * Take a batch into the channel transaction held open across calls and buffer its records per table.
+     * A table is written once it buffers write.behind.rows records. Every table is written and the
+     * transaction committed once it is write.behind.age old, holds write.behind.max.events events or the
+     * channel takes no more events into it, and as soon as no records are left buffered.
+     * When the database fails the records stay buffered and the transaction open, to be written on the
+     * next call, so the tables written meanwhile are not written again.
+     * @return BACKOFF if the channel ran empty or the database failed, READY otherwise
+     */
+    private Status consumeWriteBehind(SQLSinkHelper sqlSinkHelper, HibernateHelper hibernateHelper) {
+        Channel channel = sink.getChannel();
+        if (heldTransaction == null) {
+            heldTransaction = channel.getTransaction();
+            heldTransaction.begin();
+            heldSince = System.currentTimeMillis();
+            heldEvents = 0;
+            heldFull = false;
+        }
+
+        boolean drained = true;
+        try {
+            int maxEvents = Math.min(sqlSinkHelper.getWriteBehindMaxEvents(), takeLimit);
+            if (heldEvents < maxEvents && !heldFull) {
+                List<SinkRow> lines = new ArrayList<>();
+                try {
+                    drained = takeBatch(channel, lines, null, null, maxEvents - heldEvents);
+                } catch (IOException e) {
+                    LOG.error("Unable to read flume event", e);
+                }
+                heldEvents += takenEvents;
+                if (takeListFull) {
+                    /* Write what is held and commit rather than give back events already written */
+                    learnTakeLimit(heldEvents);
+                    heldFull = true;
+                }
+
+                for (SinkRow line : lines) {
+                    String table = sqlSinkHelper.buildTableName(line.values);
+                    List<SinkRow> buffer = buffers.get(table);
+                    if (buffer == null) {
+                        buffer = new ArrayList<>();
+                        buffers.put(table, buffer);
+                    }
+                    buffer.add(line);
+                }
+            }
+
+            boolean flushAll = heldFull || heldEvents >= maxEvents
+                    || System.currentTimeMillis() - heldSince >= sqlSinkHelper.getWriteBehindAge();
+            if (!flush(hibernateHelper, flushAll ? 0 : sqlSinkHelper.getWriteBehindRows())) {
+                return Status.BACKOFF;
+            }
+
+            if (buffers.isEmpty()) {
+                heldTransaction.commit();
+                heldTransaction.close();
+                heldTransaction = null;
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Write-behind failed, returning " + heldEvents + " events to the channel");
+            discardHeldTransaction();
+            throw e;
+        }
+
+        return drained ? Status.BACKOFF : Status.READY;
+    }
+
+    /**
+     * Write the tables buffering at least the given number of records, one table at a time
+     * so a database failure only keeps the tables not written yet
+     * @return false if the database failed, the unwritten records stay buffered
+     */
+    private boolean flush(HibernateHelper hibernateHelper, int minRows) {
+        Iterator<Map.Entry<String, List<SinkRow>>> it = buffers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, List<SinkRow>> e = it.next();
+            if (e.getValue().size() < minRows) {
+                continue;
+            }
+
+            LOG.info("Writing " + e.getValue().size() + " buffered lines of " + e.getKey());
+            if (!write(hibernateHelper, sink.getMirrors(), e.getValue(), null, null)) {
+                LOG.warn("Database unavailable, keeping " + e.getValue().size() + " lines of " + e.getKey() + " buffered");
+                return false;
+            }
+            it.remove();
+        }
+        return true;
+    }
+
+    /**
+     * Write every buffered record and commit the held transaction, e.g. before the consumer stops.
+     * If the database fails the transaction is rolled back, so the events are delivered again.
+     */
+    void flushWriteBehind() {
+        if (heldTransaction == null) {
+            return;
+        }
+        try {
+            if (flush(sink.getHibernateHelper(), 0)) {
+                heldTransaction.commit();
+                heldTransaction.close();
+                heldTransaction = null;
+                return;
+            }
+            LOG.warn("Unable to write the buffered lines, returning " + heldEvents + " events to the channel");
+        } catch (RuntimeException e) {
+            LOG.error("Unable to write the buffered lines, returning " + heldEvents + " events to the channel", e);
+        }
+        discardHeldTransaction();
+    }
+
+    private void discardHeldTransaction() {
+        buffers.clear();
+        try {
+            heldTransaction.rollback();
+        } finally {
+            heldTransaction.close();
+            heldTransaction = null;
+        }
+    }
+
+    /**
+     * Check that enough mirrors are available to meet the commit policy, so a batch is not
+     * written to some destinations only to be given back to the channel
+     */
+    private static boolean mirrorsAvailable(SQLSinkHelper sqlSinkHelper, List<SinkMirror> mirrors) {
+        if (mirrors.isEmpty() || SQLSinkHelper.MIRROR_COMMIT_PRIMARY.equals(sqlSinkHelper.getMirrorCommitPolicy())) {
+            return true;
+        }
+
+        int required = 1;
+        int available = 1;
+        for (SinkMirror mirror : mirrors) {
+            if (mirror.blocking) {
+                required++;
+                try {
+                    if (mirror.hibernateHelper.isAvailable()) {
+                        available++;
+                    }
+                } finally {
+                    mirror.hibernateHelper.releaseSession();
+                }
+            }
+        }
+        if (SQLSinkHelper.MIRROR_COMMIT_QUORUM.equals(sqlSinkHelper.getMirrorCommitPolicy())) {
+            return available * 2 > required;
+        }
+        return available == required;
+    }
+
+    private static boolean hasWatermark(HibernateHelper hibernateHelper, List<SinkMirror> mirrors) {
+        if (hibernateHelper.getSqlSinkHelper().getWatermarkTable() != null) {
+            return true;
+        }
+        for (SinkMirror mirror : mirrors) {
+            if (mirror.hibernateHelper.getSqlSinkHelper().getWatermarkTable() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write the batch to the primary database and, in parallel, to the mirrors.
+     * Whether the batch is written is decided by mirror.commit.policy over the primary database
+     * and the mirrors whose failure.policy is block.
+     * @return false if the batch must go back to the channel
+     */
+    private boolean write(HibernateHelper primary, List<SinkMirror> mirrors, final List<SinkRow> lines,
+            final List<Event> events, final List<Integer> eventRows) {
+
+        if (mirrors.isEmpty()) {
+            return writeTo(primary, sink.getName(), lines, events, eventRows);
+        }
+
+        ExecutorService executor = sink.getMirrorExecutor();
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (final SinkMirror mirror : mirrors) {
+            Callable<Boolean> task = new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        return mirror.hibernateHelper.isAvailable()
+                                && writeTo(mirror.hibernateHelper, sink.mirrorKey(mirror.name), lines, events, eventRows);
+                    } finally {
+                        /* Pooled threads serve other helpers too, do not pin a connection per thread */
+                        mirror.hibernateHelper.releaseSession();
+                    }
+                }
+            };
+            if (executor != null) {
+                results.add(executor.submit(task));
+            } else {
+                FutureTask<Boolean> result = new FutureTask<>(task);
+                result.run();
+                results.add(result);
+            }
+        }
+
+        boolean primaryWritten = writeTo(primary, sink.getName(), lines, events, eventRows);
+        int required = 1;
+        int written = primaryWritten ? 1 : 0;
+
+        for (int i = 0; i < mirrors.size(); i++) {
+            SinkMirror mirror = mirrors.get(i);
+            boolean mirrorWritten;
+            try {
+                mirrorWritten = results.get(i).get();
+            } catch (ExecutionException e) {
+                LOG.error("Unable to write mirror " + mirror.name, e.getCause());
+                mirrorWritten = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mirrorWritten = false;
+            }
+
+            if (mirror.blocking) {
+                required++;
+                if (mirrorWritten) {
+                    written++;
+                }
+            }
+            if (!mirrorWritten) {
+                LOG.warn("Mirror " + mirror.name + " did not write " + lines.size() + " lines"
+                        + (mirror.blocking ? "" : ", they are dropped for it"));
+            }
+        }
+
+        String policy = parserSqlSinkHelper.getMirrorCommitPolicy();
+        if (SQLSinkHelper.MIRROR_COMMIT_PRIMARY.equals(policy)) {
+            return primaryWritten;
+        } else if (SQLSinkHelper.MIRROR_COMMIT_QUORUM.equals(policy)) {
+            return written * 2 > required;
+        }
+        return written == required;
+    }
+
+    /**
+     * Write the batch to one destination, skipping the events it already applied when it keeps watermarks.
+     * The watermarks of a destination are kept under its own key, so destinations sharing a watermark table
+     * do not skip each other's batches.
+     * @return false if the destination is unavailable or its watermarks cannot be read
+     */
+    private boolean writeTo(HibernateHelper hibernateHelper, String destination, List<SinkRow> lines,
+            List<Event> events, List<Integer> eventRows) {
+        SQLSinkHelper sqlSinkHelper = hibernateHelper.getSqlSinkHelper();
+        BatchWatermark watermark = null;
+
+        if (events != null && sqlSinkHelper.getWatermarkTable() != null) {
+            String header = sqlSinkHelper.getWatermarkHeader();
+            int applied;
+            if (BatchWatermark.eventId(events.get(0), header) == null) {
+                LOG.warn("First event of the batch has no " + header + " header, writing the batch without a watermark");
+                return writeTo(hibernateHelper, destination, lines, null, null);
+            }
+            try {
+                applied = appliedEvents(hibernateHelper, destination, header, events);
+            } catch (RuntimeException e) {
+                if (!HibernateHelper.isConnectionFailure(e)) {
+                    LOG.error("Unable to read the watermarks of " + sqlSinkHelper.getWatermarkTable(), e);
+                }
+                return false;
+            }
+            if (applied == events.size()) {
+                return true;
+            }
+            lines = lines.subList(eventRows.get(applied), lines.size());
+            if (BatchWatermark.eventId(events.get(applied), header) != null) {
+                watermark = BatchWatermark.of(destination, header, events, applied, events.size());
+            } else {
+                LOG.warn("First event not applied yet has no " + header + " header, writing the rest of the batch without a watermark");
+            }
+        }
+
+        try {
+            hibernateHelper.executeQuery(lines, watermark);
+        } catch(Exception e) {
+            if (HibernateHelper.isConnectionFailure(e)) {
+                return false;
+            }
+            if (watermark != null) {
+                LOG.error("Unable to write batch " + watermark + ", returning it to the channel", e);
+                return false;
+            }
+            LOG.error("executeQuery error " + lines.size() + " lines");
+        }
+        return true;
+    }
+
+    /**
+     * Count the leading events that a former delivery of this batch already wrote.
+     * A redelivered batch starts with the same event, but may be longer or shorter than the one applied.
+     * When shorter, the next batch starts within the applied one, so the events it still covers are carried over.
+     */
+    private int appliedEvents(HibernateHelper hibernateHelper, String destination, String header, List<Event> events) {
+        Integer covered = coveredEvents.get(hibernateHelper);
+        int applied = covered != null ? Math.min(covered, events.size()) : 0;
+        int carried = covered != null ? covered - applied : 0;
+        if (applied > 0) {
+            LOG.info("Skipping " + applied + " events already applied by a former batch");
+        }
+
+        while (applied < events.size()) {
+            List<Event> pending = events.subList(applied, events.size());
+            String batchId = BatchWatermark.eventId(pending.get(0), header);
+            if (batchId == null) {
+                break;
+            }
+            BatchWatermark match = null;
+            int skipped = 0;
+            for (BatchWatermark watermark : hibernateHelper.findWatermarks(destination, batchId)) {
+                int count = watermark.appliedEvents(pending);
+                if (count > skipped) {
+                    match = watermark;
+                    skipped = count;
+                }
+            }
+            if (match == null) {
+                break;
+            }
+            LOG.info("Skipping " + skipped + " events already applied by batch " + match);
+            carried = match.eventCount - skipped;
+            applied += skipped;
+        }
+        batchCoveredEvents.put(hibernateHelper, carried);
+        return applied;
+    }
+
+    /**
+     * Parse an event into records, capturing the configured header values
+     */
+    private void parseEvent(Event event, List<SinkRow> lines) throws IOException {
+        SQLSinkHelper sqlSinkHelper = parserSqlSinkHelper;
+        List<String> headers = sqlSinkHelper.getArchiveHeaders();
+        byte[] body = event.getBody();
+
+        String[] headerValues = null;
+        if (!headers.isEmpty()) {
+            headerValues = new String[headers.size()];
+            for (int i = 0; i < headerValues.length; i++) {
+                headerValues[i] = event.getHeaders().get(headers.get(i));
+            }
+        }
+
+        if (sqlSinkHelper.getArchiveBodyColumn() != null) {
+            lines.add(new SinkRow(parseKeyFields(body, sqlSinkHelper), body, headerValues));
+        } else if (headerValues != null) {
+            int first = lines.size();
+            parseEvent(new String(body, sqlSinkHelper.getCharset()), lines);
+            for (int i = first; i < lines.size(); i++) {
+                lines.set(i, new SinkRow(lines.get(i).values, null, headerValues));
+            }
+        } else {
+            parseEvent(new String(body, sqlSinkHelper.getCharset()), lines);
+        }
+    }
+
+    /**
+     * Parse only the leading fields needed to route and insert an archived record.
+     * When the charset allows it the end of those fields is found on the raw bytes,
+     * so only that prefix of the body is decoded. Should the prefix still not parse, the whole body is parsed instead.
+     */
+    private String[] parseKeyFields(byte[] body, SQLSinkHelper sqlSinkHelper) throws IOException {
+        int length = body.length;
+        if (sqlSinkHelper.isAsciiCompatible()) {
+            length = keyFieldsLength(body, (byte) sqlSinkHelper.getDelimiterEntry().charAt(0), sqlSinkHelper.getKeyFieldCount());
+        }
+
+        String record = new String(body, 0, length, sqlSinkHelper.getCharset());
+        if (!sqlSinkHelper.isAsciiCompatible()) {
+            int end = record.indexOf('\n');
+            record = end >= 0 ? record.substring(0, end) : record;
+        }
+        try {
+            return csvParser.parseLine(record.trim());
+        } catch (IOException e) {
+            return csvParser.parseLine(new String(body, sqlSinkHelper.getCharset()).trim());
+        }
+    }
+
+    /**
+     * Find the end of the leading fields of a record on its raw bytes, quotes and escapes read as CSVParser does
+     * @return the length of the first fields, up to the line end or the body end
+     */
+    static int keyFieldsLength(byte[] body, byte delimiter, int fields) {
+        byte quote = (byte) CSVParser.DEFAULT_QUOTE_CHARACTER;
+        byte escape = (byte) CSVParser.DEFAULT_ESCAPE_CHARACTER;
+        boolean quoted = false;
+        /* CSVParser only honours an escape, or a doubled quote, within a field */
+        boolean inField = false;
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+            byte next = i + 1 < body.length ? body[i + 1] : 0;
+            if (b == escape) {
+                if ((quoted || inField) && (next == quote || next == escape)) {
+                    i++;
+                }
+            } else if (b == quote) {
+                if ((quoted || inField) && next == quote) {
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+                inField = !inField;
+            } else if (!quoted && (b == '\n' || b == '\r')) {
+                return i;
+            } else if (!quoted && b == delimiter) {
+                if (--fields <= 0) {
+                    return i;
+                }
+                inField = false;
+            } else {
+                inField = true;
+            }
+        }
+        return body.length;
+    }
+
+    /**
+     * Parse every record of an event body. Quoted fields spanning several lines are kept
+     * pending in the parser, also across events, as the former stream based reader did.
+     */
+    private void parseEvent(String body, List<SinkRow> lines) throws IOException {
+        body = body.trim();
+        int start = 0;
+        int length = body.length();
+
+        while (start < length) {
+            int end = body.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            int lineEnd = end > start && body.charAt(end - 1) == '\r' ? end - 1 : end;
+
+            if (lineEnd > start || csvParser.isPending()) {
+                String[] line = csvParser.parseLineMulti(body.substring(start, lineEnd));
+                if (!csvParser.isPending()) {
+                    lines.add(new SinkRow(line));
+                }
+            }
+            start = end + 1;
+        }
+    }
+}
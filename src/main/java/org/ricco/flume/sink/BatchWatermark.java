@@ -0,0 +1,99 @@
+package org.ricco.flume.sink;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import org.apache.flume.Event;
+
+/**
+ * Identifies a batch applied to the database, stored in the watermark table in the same
+ * database transaction as the batch records.<p>
+ * A batch is keyed by its destination, the sink name or the key of a mirror, and the identifier of its first event, taken from the
+ * configured header, which has to be unique per event. The event count and a hash of all the
+ * event bodies tell how far a redelivered batch, which starts with the same event, was already
+ * applied, even if it was taken with different boundaries.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+class BatchWatermark {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /* The destination key: the sink name, or the mirror key for a mirror */
+    final String sinkName;
+    final String batchId;
+    final int eventCount;
+    final String batchHash;
+
+    BatchWatermark(String sinkName, String batchId, int eventCount, String batchHash) {
+        this.sinkName = sinkName;
+        this.batchId = batchId;
+        this.eventCount = eventCount;
+        this.batchHash = batchHash;
+    }
+
+    /**
+     * Build the watermark of the events <tt>from</tt> (inclusive) to <tt>to</tt> (exclusive)
+     */
+    static BatchWatermark of(String sinkName, String header, List<Event> events, int from, int to) {
+        return new BatchWatermark(sinkName, eventId(events.get(from), header), to - from, hash(events, from, to));
+    }
+
+    /**
+     * @return the identifier of an event, null if it has none
+     */
+    static String eventId(Event event, String header) {
+        return header != null ? event.getHeaders().get(header) : null;
+    }
+
+    static String hash(List<Event> events, int from, int to) {
+        MessageDigest digest = md5();
+        for (int i = from; i < to; i++) {
+            byte[] body = events.get(i).getBody();
+            digest.update((byte) (body.length >>> 24));
+            digest.update((byte) (body.length >>> 16));
+            digest.update((byte) (body.length >>> 8));
+            digest.update((byte) body.length);
+            digest.update(body);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * A shorter redelivery starting with the same event is a prefix of the applied batch, as event ids
+     * are unique and channels redeliver in order. Another one has to start with the very events that were applied.
+     * @return how many leading events of the given batch this watermark already covers
+     */
+    int appliedEvents(List<Event> events) {
+        if (eventCount <= 0) {
+            return 0;
+        }
+        if (eventCount > events.size()) {
+            return events.size();
+        }
+        return batchHash.equals(hash(events, 0, eventCount)) ? eventCount : 0;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return sinkName + "/" + batchId + " (" + eventCount + " events)";
+    }
+}
@@ -0,0 +1,224 @@
+package org.ricco.flume.sink;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.flume.conf.ConfigurationException;
+
+/**
+ * Transformation applied to a parsed field before it is bound to the insert statement.<p>
+ * A transform is declared per column as a chain of steps separated by <tt>|</tt>, e.g.
+ * <tt>columns.transform.created = trim | null(\N) | date(yyyyMMddHHmmss,yyyy-MM-dd HH:mm:ss)</tt>,
+ * and compiled once at configure time. Supported steps:
+ * <tt>trim</tt>, <tt>upper</tt>, <tt>lower</tt>,
+ * <tt>null(token)</tt> turns the token into SQL NULL,
+ * <tt>default(value)</tt> replaces NULL and empty values,
+ * <tt>substring(begin[,end])</tt> clamped to the value length,
+ * <tt>date(inputPattern,outputPattern)</tt> reformats a date, leaving unparseable values untouched.<p>
+ * Steps return their input instance when they do not change it, so a chain over already clean
+ * values does not allocate. A NULL value is only handled by <tt>default</tt>, the other steps pass it through.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+abstract class ColumnTransform {
+
+    abstract String apply(String value);
+
+    /**
+     * Compile a transform declaration
+     * @return the compiled chain, or null if the declaration has no steps
+     */
+    static ColumnTransform compile(String declaration) {
+        List<ColumnTransform> steps = new ArrayList<>();
+        for (String step : declaration.split("\\|")) {
+            step = step.trim();
+            if (step.length() > 0) {
+                steps.add(compileStep(step));
+            }
+        }
+
+        if (steps.isEmpty()) {
+            return null;
+        }
+        if (steps.size() == 1) {
+            return steps.get(0);
+        }
+        return new Chain(steps.toArray(new ColumnTransform[steps.size()]));
+    }
+
+    private static ColumnTransform compileStep(String step) {
+        String name = step;
+        String[] args = new String[0];
+
+        int open = step.indexOf('(');
+        if (open >= 0) {
+            if (!step.endsWith(")")) {
+                throw new ConfigurationException("Malformed column transform " + step);
+            }
+            name = step.substring(0, open).trim();
+            args = step.substring(open + 1, step.length() - 1).split(",", -1);
+        }
+
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "trim":
+                return new Trim();
+            case "upper":
+                return new Upper();
+            case "lower":
+                return new Lower();
+            case "null":
+                checkArgs(step, args, 1, 1);
+                return new NullToken(args[0]);
+            case "default":
+                checkArgs(step, args, 1, 1);
+                return new Default(args[0]);
+            case "substring":
+                checkArgs(step, args, 1, 2);
+                try {
+                    int begin = Integer.parseInt(args[0].trim());
+                    int end = args.length > 1 ? Integer.parseInt(args[1].trim()) : Integer.MAX_VALUE;
+                    if (begin < 0 || end < begin) {
+                        throw new ConfigurationException("Invalid bounds in column transform " + step);
+                    }
+                    return new Substring(begin, end);
+                } catch (NumberFormatException e) {
+                    throw new ConfigurationException("Invalid bounds in column transform " + step, e);
+                }
+            case "date":
+                checkArgs(step, args, 2, 2);
+                try {
+                    return new DateFormat(args[0].trim(), args[1].trim());
+                } catch (IllegalArgumentException e) {
+                    throw new ConfigurationException("Invalid date pattern in column transform " + step, e);
+                }
+            default:
+                throw new ConfigurationException("Unknown column transform " + step);
+        }
+    }
+
+    private static void checkArgs(String step, String[] args, int min, int max) {
+        if (args.length < min || args.length > max) {
+            throw new ConfigurationException("Wrong number of arguments in column transform " + step);
+        }
+    }
+
+    private static class Chain extends ColumnTransform {
+        private final ColumnTransform[] steps;
+
+        Chain(ColumnTransform[] steps) {
+            this.steps = steps;
+        }
+
+        @Override
+        String apply(String value) {
+            for (ColumnTransform step : steps) {
+                value = step.apply(value);
+            }
+            return value;
+        }
+    }
+
+    private static class Trim extends ColumnTransform {
+        @Override
+        String apply(String value) {
+            return value == null ? null : value.trim();
+        }
+    }
+
+    private static class Upper extends ColumnTransform {
+        @Override
+        String apply(String value) {
+            return value == null ? null : value.toUpperCase(Locale.ROOT);
+        }
+    }
+
+    private static class Lower extends ColumnTransform {
+        @Override
+        String apply(String value) {
+            return value == null ? null : value.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static class NullToken extends ColumnTransform {
+        private final String token;
+
+        NullToken(String token) {
+            this.token = token;
+        }
+
+        @Override
+        String apply(String value) {
+            return token.equals(value) ? null : value;
+        }
+    }
+
+    private static class Default extends ColumnTransform {
+        private final String defaultValue;
+
+        Default(String defaultValue) {
+            this.defaultValue = defaultValue;
+        }
+
+        @Override
+        String apply(String value) {
+            return value == null || value.isEmpty() ? defaultValue : value;
+        }
+    }
+
+    private static class Substring extends ColumnTransform {
+        private final int begin;
+        private final int end;
+
+        Substring(int begin, int end) {
+            this.begin = begin;
+            this.end = end;
+        }
+
+        @Override
+        String apply(String value) {
+            if (value == null) {
+                return null;
+            }
+            int length = value.length();
+            return value.substring(Math.min(begin, length), Math.min(end, length));
+        }
+    }
+
+    private static class DateFormat extends ColumnTransform {
+        private final String inputPattern;
+        private final String outputPattern;
+        /* SimpleDateFormat is not thread safe and the compiled transforms are shared by the consumers */
+        private final ThreadLocal<SimpleDateFormat[]> formats = new ThreadLocal<SimpleDateFormat[]>() {
+            @Override
+            protected SimpleDateFormat[] initialValue() {
+                SimpleDateFormat input = new SimpleDateFormat(inputPattern);
+                input.setLenient(false);
+                return new SimpleDateFormat[] { input, new SimpleDateFormat(outputPattern) };
+            }
+        };
+
+        DateFormat(String inputPattern, String outputPattern) {
+            this.inputPattern = inputPattern;
+            this.outputPattern = outputPattern;
+            /* Fail at configure time on invalid patterns */
+            new SimpleDateFormat(inputPattern);
+            new SimpleDateFormat(outputPattern);
+        }
+
+        @Override
+        String apply(String value) {
+            if (value == null || value.isEmpty()) {
+                return value;
+            }
+            SimpleDateFormat[] format = formats.get();
+            try {
+                return format[1].format(format[0].parse(value));
+            } catch (ParseException e) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.ricco.flume.sink;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker guarding the database connection.<p>
+ * After <tt>failureThreshold</tt> consecutive connection failures the circuit opens and
+ * no request is allowed until its backoff expires. The backoff doubles every time the
+ * circuit opens again, up to <tt>maxBackoff</tt>, and is reset by the first success.
+ * Successful validations are cached for <tt>validationInterval</tt> milliseconds.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+class ConnectionHealthManager {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionHealthManager.class);
+
+    private final int failureThreshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long validationInterval;
+
+    private int consecutiveFailures = 0;
+    private long backoff;
+    private long openUntil = 0;
+    private long lastValidation = 0;
+
+    ConnectionHealthManager(int failureThreshold, long initialBackoff, long maxBackoff, long validationInterval) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = Math.max(initialBackoff, maxBackoff);
+        this.validationInterval = validationInterval;
+        this.backoff = initialBackoff;
+    }
+
+    /**
+     * @return false while the circuit is open
+     */
+    synchronized boolean allowRequest() {
+        return System.currentTimeMillis() >= openUntil;
+    }
+
+    /**
+     * @return true if the connection has to be validated again, false while a previous validation is still fresh
+     */
+    synchronized boolean needsValidation() {
+        return System.currentTimeMillis() - lastValidation >= validationInterval;
+    }
+
+    synchronized void recordSuccess() {
+        if (consecutiveFailures > 0) {
+            LOG.info("Database connection recovered after {} failure(s)", consecutiveFailures);
+        }
+        consecutiveFailures = 0;
+        backoff = initialBackoff;
+        lastValidation = System.currentTimeMillis();
+    }
+
+    /**
+     * Register a connection failure
+     * @return true if this failure opened the circuit
+     */
+    synchronized boolean recordFailure() {
+        consecutiveFailures++;
+        lastValidation = 0;
+
+        if (consecutiveFailures < failureThreshold) {
+            return false;
+        }
+
+        openUntil = System.currentTimeMillis() + backoff;
+        LOG.warn("Database unavailable after {} failure(s), backing off for {} ms", consecutiveFailures, backoff);
+        backoff = Math.min(backoff * 2, maxBackoff);
+        return true;
+    }
+}
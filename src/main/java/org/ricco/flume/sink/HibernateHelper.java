@@ -5,16 +5,31 @@ import java.util.*;
 import org.hibernate.*;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.service.ServiceRegistry;
+import org.hibernate.jdbc.ReturningWork;
 import org.hibernate.jdbc.Work;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.flume.Context;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Savepoint;
+import java.sql.Timestamp;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Types;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Helper class to manage hibernate sessions and perform queries
@@ -27,11 +42,26 @@ public class HibernateHelper {
 	private static final Logger LOG = LoggerFactory
 			.getLogger(HibernateHelper.class);
 
-	private static SessionFactory factory;
-	private Session session;
+	private volatile SessionFactory factory;
+	/* Sessions are not thread safe, every consumer thread gets its own one */
+	private final ThreadLocal<Session> threadSession = new ThreadLocal<>();
+	private final Map<Session, Thread> openSessions = new HashMap<>();
+	/* Factories left behind by a failover, closed once the threads still using them let go of their sessions */
+	private final List<SessionFactory> retiredFactories = new ArrayList<>();
 	private ServiceRegistry serviceRegistry;
 	private Configuration config;
-	private SQLSinkHelper sqlSinkHelper;
+	private volatile SQLSinkHelper sqlSinkHelper;
+	private ConnectionHealthManager health;
+	private final WriteScheduler scheduler = new WriteScheduler();
+	/* Primary connection url followed by the failover urls */
+	private List<String> connectionURLs = new ArrayList<>();
+	private int connectionURLIndex = 0;
+	/* Connection setup runs in the background so a slow database does not stall the agent */
+	private ExecutorService connector;
+	private Future<?> connecting;
+	private boolean closed = false;
+	/* Sinks sharing this helper, see SQLSink.acquireHibernateHelper */
+	private int references = 1;
 
 	/**
 	 * Constructor to initialize hibernate configuration parameters
@@ -56,31 +86,303 @@ public class HibernateHelper {
 			config.setProperty("hibernate." + e.getKey(), e.getValue());
 		}
 
+		connectionURLs.add(sqlSinkHelper.getConnectionURL());
+		connectionURLs.addAll(sqlSinkHelper.getFailoverURLs());
+
+		scheduler.configure(sqlSinkHelper);
+		health = new ConnectionHealthManager(sqlSinkHelper.getConnectionFailureThreshold(),
+				sqlSinkHelper.getConnectionBackoffInitial(), sqlSinkHelper.getConnectionBackoffMax(),
+				sqlSinkHelper.getConnectionValidationInterval());
 	}
 
 	/**
-	 * Connect to database using hibernate
+	 * Connect to database using hibernate.
+	 * The session factory is built outside the lock, so availability checks never wait for it.
 	 */
 	public void establishSession() {
 
-		LOG.info("Opening hibernate session");
+		String url;
+		synchronized (this) {
+			url = connectionURLs.get(connectionURLIndex);
+			config.setProperty("hibernate.connection.url", url);
+		}
+
+		LOG.info("Opening hibernate session to " + url);
 
-		serviceRegistry = new StandardServiceRegistryBuilder()
+		ServiceRegistry registry = new StandardServiceRegistryBuilder()
 				.applySettings(config.getProperties()).build();
-		factory = config.buildSessionFactory(serviceRegistry);
-		session = factory.openSession();
-		session.setCacheMode(CacheMode.IGNORE);
+		SessionFactory sessionFactory = config.buildSessionFactory(registry);
+
+		synchronized (this) {
+			if (closed) {
+				sessionFactory.close();
+				return;
+			}
+			serviceRegistry = registry;
+			factory = sessionFactory;
+		}
+	}
+
+	/**
+	 * Start connecting to the database in the background, unless connected or already connecting
+	 */
+	public synchronized void connectAsync() {
+
+		if (closed || factory != null || (connecting != null && !connecting.isDone())) {
+			return;
+		}
+
+		if (connector == null) {
+			connector = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "SQLSink-connector");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		connecting = connector.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					establishSession();
+				} catch (Exception e) {
+					LOG.warn("Unable to open hibernate session: " + e.getMessage());
+					connectionFailed();
+				}
+			}
+		});
 	}
 
 	/**
 	 * Close database connection
 	 */
-	public void closeSession() {
+	public synchronized void closeSession() {
 
 		LOG.info("Closing hibernate session");
 
-		session.close();
-		factory.close();
+		closed = true;
+		if (connector != null) {
+			connector.shutdownNow();
+		}
+		closeFactory();
+	}
+
+	private synchronized void closeFactory() {
+
+		for (Session session : openSessions.keySet()) {
+			if (session.isOpen()) {
+				session.close();
+			}
+		}
+		openSessions.clear();
+		for (SessionFactory retired : retiredFactories) {
+			retired.close();
+		}
+		retiredFactories.clear();
+		if (factory != null) {
+			factory.close();
+			factory = null;
+		}
+	}
+
+	/**
+	 * Stop opening sessions on the current factory without closing the sessions
+	 * other consumer threads are using, they switch over on their next batch
+	 */
+	private synchronized void retireFactory() {
+		if (factory != null) {
+			retiredFactories.add(factory);
+			factory = null;
+		}
+		closeRetiredFactories();
+	}
+
+	private synchronized void closeRetiredFactories() {
+		Iterator<SessionFactory> it = retiredFactories.iterator();
+		while (it.hasNext()) {
+			SessionFactory retired = it.next();
+			boolean inUse = false;
+			for (Session session : openSessions.keySet()) {
+				inUse |= session.getSessionFactory() == retired;
+			}
+			if (!inUse) {
+				retired.close();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Close the session of the calling thread, if any
+	 */
+	public void releaseSession() {
+		Session session = threadSession.get();
+		if (session != null) {
+			threadSession.remove();
+			if (session.isOpen()) {
+				session.close();
+			}
+			synchronized (this) {
+				openSessions.remove(session);
+				closeRetiredFactories();
+			}
+		}
+	}
+
+	/**
+	 * Close the sessions of threads that are gone, e.g. the runner thread of a stopped sink sharing this helper
+	 */
+	synchronized void releaseOrphanSessions() {
+		Iterator<Map.Entry<Session, Thread>> it = openSessions.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Session, Thread> e = it.next();
+			if (!e.getValue().isAlive()) {
+				if (e.getKey().isOpen()) {
+					e.getKey().close();
+				}
+				it.remove();
+			}
+		}
+		closeRetiredFactories();
+	}
+
+	private Session getSession() {
+		Session session = threadSession.get();
+		if (session == null || !session.isOpen() || session.getSessionFactory() != factory) {
+			synchronized (this) {
+				if (session != null && session.isOpen()) {
+					/* Opened before a failover */
+					session.close();
+				}
+				openSessions.remove(session);
+				threadSession.remove();
+				closeRetiredFactories();
+				if (factory == null) {
+					throw new JDBCConnectionException("Not connected", new SQLException("Not connected", "08003"));
+				}
+				session = factory.openSession();
+				openSessions.put(session, Thread.currentThread());
+			}
+			session.setCacheMode(CacheMode.IGNORE);
+			threadSession.set(session);
+		}
+		return session;
+	}
+
+	/**
+	 * Check whether the database can take a batch, without blocking while it is known to be down.
+	 * Returns false while the circuit breaker is open or while the connection is being set up in the
+	 * background. Otherwise validates the connection, unless a previous validation is still fresh.
+	 */
+	public boolean isAvailable() {
+
+		if (!health.allowRequest()) {
+			return false;
+		}
+
+		if (factory == null) {
+			connectAsync();
+			return false;
+		}
+
+		try {
+			if (health.needsValidation()) {
+				final int timeout = sqlSinkHelper.getConnectionValidationTimeout();
+				boolean valid = getSession().doReturningWork(new ReturningWork<Boolean>() {
+					@Override
+					public Boolean execute(Connection connection) throws SQLException {
+						return connection.isValid(timeout);
+					}
+				});
+				if (!valid) {
+					throw new JDBCConnectionException("Connection validation failed", new SQLException());
+				}
+				health.recordSuccess();
+			}
+			return true;
+		} catch (Exception e) {
+			LOG.warn("Database connection check failed: " + e.getMessage());
+			connectionFailed();
+			return false;
+		}
+	}
+
+	/**
+	 * Register a connection failure. Drop the session of the calling thread so the next
+	 * attempt gets a fresh connection. When the circuit opens and failover urls are configured,
+	 * retire the session factory so the next attempt connects to the next url.
+	 */
+	private void connectionFailed() {
+		releaseSession();
+		if (health.recordFailure() && connectionURLs.size() > 1) {
+			synchronized (this) {
+				retireFactory();
+				connectionURLIndex = (connectionURLIndex + 1) % connectionURLs.size();
+				LOG.warn("Failing over to " + connectionURLs.get(connectionURLIndex));
+			}
+		}
+	}
+
+	/**
+	 * @return true if both configurations connect to the database the same way, so a helper can be kept across them
+	 */
+	static boolean sameConnection(SQLSinkHelper a, SQLSinkHelper b) {
+		return a.getContext().getSubProperties("hibernate.").equals(b.getContext().getSubProperties("hibernate."))
+				&& a.getContext().getSubProperties("connection.").equals(b.getContext().getSubProperties("connection."));
+	}
+
+	SQLSinkHelper getSqlSinkHelper() {
+		return sqlSinkHelper;
+	}
+
+	/**
+	 * Swap the routing and column plan used for the next batches, keeping the connection pool
+	 */
+	void setSqlSinkHelper(SQLSinkHelper sqlSinkHelper) {
+		this.sqlSinkHelper = sqlSinkHelper;
+		scheduler.configure(sqlSinkHelper);
+	}
+
+	WriteScheduler getWriteScheduler() {
+		return scheduler;
+	}
+
+	synchronized void retain() {
+		references++;
+	}
+
+	/**
+	 * @return true if no sink uses this helper anymore
+	 */
+	synchronized boolean release() {
+		return --references <= 0;
+	}
+
+	/**
+	 * Tell a lost or unusable connection apart from a rejected statement
+	 */
+	static boolean isConnectionFailure(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof JDBCConnectionException
+					|| cause instanceof SQLRecoverableException
+					|| cause instanceof SQLTransientConnectionException
+					|| cause instanceof SQLNonTransientConnectionException) {
+				return true;
+			}
+			if (cause instanceof SQLException) {
+				String sqlState = ((SQLException) cause).getSQLState();
+				if (sqlState != null && sqlState.startsWith("08")) {
+					return true;
+				}
+			}
+			if (cause.getCause() == cause) {
+				break;
+			}
+		}
+		return false;
 	}
 
 
@@ -88,20 +390,34 @@ public class HibernateHelper {
 	 * Execute the selection query in the database
 	 * The cell contents use database types (date,int,string...),
 	 * keep in mind in case of future conversions/castings.
+	 * Rejected records are logged and dropped, a connection failure is rethrown
+	 * so the caller can give the batch back to the channel.
+	 * @throws InterruptedException
+	 */
+	public void executeQuery(List<SinkRow> lines) throws InterruptedException {
+		executeQuery(lines, null);
+	}
+
+	/**
+	 * Execute the insert queries of a batch. With a watermark, every table of the batch and the
+	 * watermark row are written in a single database transaction, otherwise one transaction runs per table.
 	 * @throws InterruptedException
 	 */
 	@SuppressWarnings("unchecked")
-	public void executeQuery(List<String[]> lines) throws InterruptedException {
+	public void executeQuery(List<SinkRow> lines, BatchWatermark watermark) throws InterruptedException {
 
+		/* The same plan is used for the whole batch, even if the configuration is swapped meanwhile */
+		SQLSinkHelper sqlSinkHelper = this.sqlSinkHelper;
+		Session session = getSession();
 		if (!session.isConnected()){
-			resetConnection();
+			session = resetConnection();
 		}
 
-		Map<String,List<String[]>> linesMap = new HashMap<>();
-		for(String[] line : lines) {
-            List<String[]> linesWithinTable;
+		Map<String,List<SinkRow>> linesMap = new HashMap<>();
+		for(SinkRow line : lines) {
+            List<SinkRow> linesWithinTable;
 
-			String tableName = sqlSinkHelper.buildTableName(line);
+			String tableName = sqlSinkHelper.buildTableName(line.values);
 			if(linesMap.containsKey(tableName)) {
                 linesWithinTable = linesMap.get(tableName);
             } else {
@@ -111,21 +427,37 @@ public class HibernateHelper {
 
 			linesWithinTable.add(line);
 		}
+		sortTableGroups(sqlSinkHelper, linesMap);
 
-        for (String table : linesMap.keySet()) {
+		if (watermark != null) {
+			executeWatermarked(session, sqlSinkHelper, scheduler.schedule(linesMap), watermark);
+			health.recordSuccess();
+			return;
+		}
+
+        WriteScheduler.Round round = scheduler.schedule(linesMap);
+        for (WriteScheduler.Chunk chunk = round.next(); chunk != null; chunk = round.next()) {
+            String table = chunk.table;
             Transaction tx = null;
             try {
-                LOG.info("Begin transaction " + linesMap.get(table).size() + " lines of " + table);
+                LOG.info("Begin transaction " + chunk.rows.size() + " lines of " + table);
 
                 tx = session.beginTransaction();
 
-                session.doWork(new TableWork(table, linesMap.get(table)));
+                session.doWork(new TableWork(sqlSinkHelper, table, chunk.rows));
 
                 tx.commit();
                 LOG.info("Commit transaction " + table);
             } catch (Exception e) {
-                LOG.warn(table + " lost " + linesMap.get(table).size() + " record(s).");
-                LOG.warn("First record: " + String.join(",", linesMap.get(table).get(0)));
+                if (isConnectionFailure(e)) {
+                    /* Leave the remaining records in the channel, they are retried once the database is back */
+                    LOG.warn("Connection lost writing " + table + ": " + e.getMessage());
+                    rollbackQuietly(tx);
+                    connectionFailed();
+                    throw e instanceof HibernateException ? (HibernateException) e : new HibernateException(e);
+                }
+                LOG.warn(table + " lost " + chunk.rows.size() + " record(s).");
+                LOG.warn("First record: " + chunk.rows.get(0));
                 if (tx != null) {
                     tx.rollback();
                 }
@@ -134,23 +466,176 @@ public class HibernateHelper {
                 //sf.close();
             }
         }
+
+        health.recordSuccess();
 	}
 
-	private void resetConnection() {
-		LOG.info("resetConnection");
-		if(session.isOpen()){
-			session.close();
-			factory.close();
-		} else {
-			establishSession();
+	/**
+	 * Put the rows of every table in the order of the sort columns. The whole table group is sorted
+	 * before it is cut into chunks, so the index is filled in key order across the chunks as well.
+	 */
+	private static void sortTableGroups(SQLSinkHelper sqlSinkHelper, Map<String, List<SinkRow>> linesMap) {
+		int[] sortParams = sqlSinkHelper.getSortParams();
+		if (sortParams.length == 0) {
+			return;
+		}
+		for (Map.Entry<String, List<SinkRow>> e : linesMap.entrySet()) {
+			List<SinkRow> rows = e.getValue();
+			int[] order = TableWork.sortedOrder(rows, sqlSinkHelper.getColumnIndexes(),
+					sqlSinkHelper.getColumnTransforms(), sortParams);
+			if (order != null) {
+				List<SinkRow> sorted = new ArrayList<>(rows.size());
+				for (int r : order) {
+					sorted.add(rows.get(r));
+				}
+				e.setValue(sorted);
+			}
+		}
+	}
+
+	private void executeWatermarked(Session session, SQLSinkHelper sqlSinkHelper,
+			WriteScheduler.Round round, BatchWatermark watermark) {
+		/* Wait for the rate limits before the transaction is opened, not while it holds its locks */
+		List<WriteScheduler.Chunk> chunks = new ArrayList<>();
+		for (WriteScheduler.Chunk chunk = round.next(); chunk != null; chunk = round.next()) {
+			chunks.add(chunk);
+		}
+
+		Transaction tx = null;
+		try {
+			LOG.info("Begin transaction of batch " + watermark);
+
+			tx = session.beginTransaction();
+
+			session.doWork(new WatermarkWork(sqlSinkHelper, chunks, watermark));
+
+			tx.commit();
+			LOG.info("Commit transaction of batch " + watermark);
+		} catch (Exception e) {
+			if (isConnectionFailure(e)) {
+				LOG.warn("Connection lost writing batch " + watermark + ": " + e.getMessage());
+				rollbackQuietly(tx);
+				connectionFailed();
+				throw e instanceof HibernateException ? (HibernateException) e : new HibernateException(e);
+			}
+			/* Records rejected by a table were rolled back to their savepoint already,
+			 * anything else, e.g. a failed watermark insert, gives the whole batch back to the channel */
+			LOG.error("Batch " + watermark + " failed, rolling it back: " + e.getMessage());
+			rollbackQuietly(tx);
+			throw e instanceof HibernateException ? (HibernateException) e : new HibernateException(e);
 		}
 	}
 
-    private class TableWork implements Work{
+	/**
+	 * Look up the watermarks of the batches starting with the given event. There may be several
+	 * when an event id was reused for other events.
+	 */
+	List<BatchWatermark> findWatermarks(final String sinkName, final String batchId) {
+		final String table = sqlSinkHelper.getWatermarkTable();
+		Transaction tx = null;
+		try {
+			Session session = getSession();
+			tx = session.beginTransaction();
+			List<BatchWatermark> watermarks = session.doReturningWork(new ReturningWork<List<BatchWatermark>>() {
+				@Override
+				public List<BatchWatermark> execute(Connection connection) throws SQLException {
+					List<BatchWatermark> watermarks = new ArrayList<>();
+					try (PreparedStatement ps = connection.prepareStatement("select event_count, batch_hash from "
+							+ table + " where sink_name = ? and batch_id = ?")) {
+						ps.setString(1, sinkName);
+						ps.setString(2, batchId);
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								watermarks.add(new BatchWatermark(sinkName, batchId, rs.getInt(1), rs.getString(2)));
+							}
+						}
+					}
+					return watermarks;
+				}
+			});
+			tx.commit();
+			return watermarks;
+		} catch (RuntimeException e) {
+			if (isConnectionFailure(e)) {
+				rollbackQuietly(tx);
+				connectionFailed();
+			} else if (tx != null) {
+				tx.rollback();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Roll back after a failure, so a connection that is still open does not go back
+	 * to the pool with the records of the failed transaction
+	 */
+	private static void rollbackQuietly(Transaction tx) {
+		if (tx != null) {
+			try {
+				tx.rollback();
+			} catch (Exception e) {
+				LOG.debug("Rollback after failure failed: " + e.getMessage());
+			}
+		}
+	}
+
+	private Session resetConnection() {
+		LOG.info("resetConnection");
+		releaseSession();
+		return getSession();
+	}
+
+    /**
+     * Writes every table of a batch and its watermark on one connection. A chunk whose records are
+     * rejected is rolled back to its savepoint, so the other chunks and the watermark are still committed.
+     */
+    private static class WatermarkWork implements Work {
+        private SQLSinkHelper sqlSinkHelper;
+        private List<WriteScheduler.Chunk> chunks;
+        private BatchWatermark watermark;
+
+        WatermarkWork(SQLSinkHelper sqlSinkHelper, List<WriteScheduler.Chunk> chunks, BatchWatermark watermark) {
+            this.sqlSinkHelper = sqlSinkHelper;
+            this.chunks = chunks;
+            this.watermark = watermark;
+        }
+
+        @Override
+        public void execute(Connection connection) throws SQLException {
+            for (WriteScheduler.Chunk chunk : chunks) {
+                Savepoint savepoint = connection.setSavepoint();
+                try {
+                    new TableWork(sqlSinkHelper, chunk.table, chunk.rows).execute(connection);
+                } catch (SQLException ex) {
+                    if (isConnectionFailure(ex)) {
+                        throw ex;
+                    }
+                    connection.rollback(savepoint);
+                    LOG.warn(chunk.table + " lost " + chunk.rows.size() + " record(s): " + ex.getMessage());
+                    LOG.warn("First record: " + chunk.rows.get(0));
+                }
+            }
+
+            try (PreparedStatement ps = connection.prepareStatement("insert into " + sqlSinkHelper.getWatermarkTable()
+                    + "(sink_name,batch_id,event_count,batch_hash,applied_at) values (?,?,?,?,?)")) {
+                ps.setString(1, watermark.sinkName);
+                ps.setString(2, watermark.batchId);
+                ps.setInt(3, watermark.eventCount);
+                ps.setString(4, watermark.batchHash);
+                ps.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    static class TableWork implements Work{
+	    private SQLSinkHelper sqlSinkHelper;
 	    private String tableName;
-	    private List<String[]> linesWithinTable;
+	    private List<SinkRow> linesWithinTable;
 
-        public TableWork(String tableName, List<String[]> linesWithinTable) {
+        public TableWork(SQLSinkHelper sqlSinkHelper, String tableName, List<SinkRow> linesWithinTable) {
+            this.sqlSinkHelper = sqlSinkHelper;
             this.tableName = tableName;
             this.linesWithinTable = linesWithinTable;
         }
@@ -160,19 +645,125 @@ public class HibernateHelper {
             //通过JDBC API执行用于批量插入的sql语句;
             List<Integer> paramIndexes = new ArrayList<>();
             String sql = sqlSinkHelper.buildInsertQuery(tableName, paramIndexes);
-            PreparedStatement ps = arg0.prepareStatement(sql);
+            ColumnTransform[] transforms = sqlSinkHelper.getColumnTransforms();
+            int headerColumns = sqlSinkHelper.getArchiveHeaders().size();
+            String bodyType = sqlSinkHelper.getArchiveBodyColumn() != null ? sqlSinkHelper.getArchiveBodyType() : null;
+            try (PreparedStatement ps = arg0.prepareStatement(sql)) {
+                for (SinkRow row : linesWithinTable) {
+                    for (int i = 0; i < paramIndexes.size(); i++) {
+                        String value = value(row, i, paramIndexes, transforms);
+
+                        if (value != null)
+                            ps.setString(i + 1, value);
+                        else ps.setNull(i + 1, Types.VARCHAR);
+                    }
+
+                    int param = paramIndexes.size();
+                    for (int i = 0; i < headerColumns; i++) {
+                        String value = row.headers != null ? row.headers[i] : null;
+                        if (value != null)
+                            ps.setString(++param, value);
+                        else ps.setNull(++param, Types.VARCHAR);
+                    }
+
+                    /* Bind the raw body without decoding it */
+                    if (bodyType != null) {
+                        param++;
+                        if (row.body == null) {
+                            ps.setNull(param, SQLSinkHelper.ARCHIVE_BODY_TEXT.equals(bodyType) ? Types.CLOB : Types.BLOB);
+                        } else if (SQLSinkHelper.ARCHIVE_BODY_STREAM.equals(bodyType)) {
+                            ps.setBinaryStream(param, new ByteArrayInputStream(row.body), row.body.length);
+                        } else if (SQLSinkHelper.ARCHIVE_BODY_TEXT.equals(bodyType)) {
+                            ps.setCharacterStream(param, new InputStreamReader(new ByteArrayInputStream(row.body), sqlSinkHelper.getCharset()));
+                        } else {
+                            ps.setBytes(param, row.body);
+                        }
+                    }
+
+                    ps.addBatch();
+                }
 
-            for (String[] line : linesWithinTable) {
-                for (int i = 0; i < paramIndexes.size(); i++) {
-                    if (line.length > paramIndexes.get(i))
-                        ps.setString(i + 1, line[paramIndexes.get(i)]);
-                    else ps.setString(i + 1, "");
+                ps.executeBatch();
+            }
+        }
+
+        private static String value(SinkRow row, int param, List<Integer> paramIndexes, ColumnTransform[] transforms) {
+            String[] line = row.values;
+            String value = line.length > paramIndexes.get(param) ? line[paramIndexes.get(param)] : "";
+            return transforms[param] != null ? transforms[param].apply(value) : value;
+        }
+
+        /**
+         * Sort the row indexes by the bound values of the sort columns into a deterministic order, which
+         * is the order of a clustered index on them when the key columns hold unsigned integers or plain
+         * ASCII strings only. Only the keys are extracted, the rows are not touched.
+         * @return the row indexes in insert order, null to keep the arrival order
+         */
+        static int[] sortedOrder(List<SinkRow> rows, List<Integer> paramIndexes, ColumnTransform[] transforms, int[] sortParams) {
+            if (sortParams.length == 0 || rows.size() < 2) {
+                return null;
+            }
+
+            final String[][] keys = new String[rows.size()][sortParams.length];
+            Integer[] indexes = new Integer[rows.size()];
+            for (int r = 0; r < indexes.length; r++) {
+                indexes[r] = r;
+                for (int k = 0; k < sortParams.length; k++) {
+                    keys[r][k] = value(rows.get(r), sortParams[k], paramIndexes, transforms);
                 }
+            }
+
+            Arrays.sort(indexes, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    for (int k = 0; k < keys[a].length; k++) {
+                        int c = compareKeys(keys[a][k], keys[b][k]);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return 0;
+                }
+            });
 
-                ps.addBatch();
+            int[] order = new int[indexes.length];
+            for (int r = 0; r < order.length; r++) {
+                order[r] = indexes[r];
             }
+            return order;
+        }
 
-            ps.executeBatch();
+        /**
+         * NULL first, then unsigned integers by value, then the other values as strings.
+         * Integers are never compared to other values as strings, which would break transitivity.
+         * This is a total order, not the database's: a column mixing integers with other values, signed
+         * or decimal numbers, or strings under a collation order differently in the index.
+         */
+        static int compareKeys(String a, String b) {
+            if (a == null || b == null) {
+                return a == null ? (b == null ? 0 : -1) : 1;
+            }
+            boolean digits = isDigits(a);
+            if (digits != isDigits(b)) {
+                return digits ? -1 : 1;
+            }
+            if (digits && a.length() != b.length()) {
+                return a.length() - b.length();
+            }
+            return a.compareTo(b);
+        }
+
+        private static boolean isDigits(String value) {
+            if (value.isEmpty() || (value.length() > 1 && value.charAt(0) == '0')) {
+                return false;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 }
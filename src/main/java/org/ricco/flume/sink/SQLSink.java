@@ -18,27 +18,25 @@
  *******************************************************************************/
 package org.ricco.flume.sink;
 
-import java.io.IOException;
-import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.flume.Channel;
 import org.apache.flume.Context;
-import org.apache.flume.Event;
-import org.apache.flume.Transaction;
 import org.apache.flume.conf.Configurable;
+import org.apache.flume.lifecycle.LifecycleState;
 import org.apache.flume.sink.AbstractSink;
 import org.ricco.flume.metrics.SqlSinkCounter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.opencsv.CSVReader;
-
-/*Support UTF-8 character encoding.*/
-import java.nio.charset.Charset;
-
-
 /**
  * A Source to read data from a SQL database. This source ask for new data in a table each configured time.<p>
  * 
@@ -47,14 +45,28 @@ import java.nio.charset.Charset;
 public class SQLSink extends AbstractSink implements Configurable {
 
     private static final Logger LOG = LoggerFactory.getLogger(SQLSink.class);
-    protected SQLSinkHelper sqlSinkHelper;
+    private static final long WORKER_BACKOFF_INCREMENT = 1000;
+    private static final long WORKER_MAX_BACKOFF = 5000;
+
+    /* Hibernate helpers by sink name, so a reconfigured sink keeps the connection pool of its predecessor */
+    private static final Map<String, HibernateHelper> HIBERNATE_HELPERS = new HashMap<>();
+
+    protected volatile SQLSinkHelper sqlSinkHelper;
     private SqlSinkCounter sqlSinkCounter;
-    private CSVReader csvReader;
-    private HibernateHelper hibernateHelper;
-    private int autoBatchDuration = 0;
+    private volatile HibernateHelper hibernateHelper;
+    private volatile List<SinkMirror> mirrors = Collections.emptyList();
+    /* Writes the mirrors of a batch in parallel with the primary database */
+    private volatile ExecutorService mirrorExecutor;
+    private BatchConsumer batchConsumer;
+    private List<Thread> workers = new ArrayList<>();
+    private volatile CountDownLatch stopSignal = new CountDownLatch(1);
        
     /**
-     * Configure the source, load configuration properties and establish connection with database
+     * Configure the source and load configuration properties. The connection with the database is
+     * set up in the background once the sink starts.<p>
+     * When the sink, or its predecessor with the same name, is already connected with the same
+     * hibernate and connection properties, the new column and routing plan is swapped in and the
+     * existing connection pool is kept.
      */
     @Override
     public void configure(Context context) {
@@ -64,168 +76,271 @@ public class SQLSink extends AbstractSink implements Configurable {
     	LOG.info("Reading and processing configuration values for source " + getName());
 		
     	/* Initialize configuration parameters */
-    	sqlSinkHelper = new SQLSinkHelper(context);
+    	SQLSinkHelper newSqlSinkHelper = new SQLSinkHelper(context);
         
     	/* Initialize metric counters */
-		sqlSinkCounter = new SqlSinkCounter("SINKSQL." + this.getName());
-        
-        /* Establish connection with database */
-        hibernateHelper = new HibernateHelper(sqlSinkHelper);
-        hibernateHelper.establishSession();
+    	if (sqlSinkCounter == null) {
+    		sqlSinkCounter = new SqlSinkCounter("SINKSQL." + this.getName());
+    	}
+
+        if (sqlSinkHelper != null && !workers.isEmpty()
+                && sqlSinkHelper.getConsumerThreads() != newSqlSinkHelper.getConsumerThreads()) {
+            LOG.warn("consumer.threads change of sql sink {} applies on next start", getName());
+        }
+        if (sqlSinkHelper != null && workers.isEmpty() && newSqlSinkHelper.getWriteBehindRows() > 0
+                && sqlSinkHelper.getWriteBehindRows() <= 0 && getLifecycleState() == LifecycleState.START) {
+            LOG.warn("write.behind.rows of sql sink {} applies on next start", getName());
+        }
+
+        hibernateHelper = acquireHibernateHelper(getName(), hibernateHelper, newSqlSinkHelper);
+        mirrors = acquireMirrors(newSqlSinkHelper);
+        sqlSinkHelper = newSqlSinkHelper;
+        sqlSinkCounter.setRateLimitControl(hibernateHelper.getWriteScheduler());
        
-        /* Instantiate the CSV Reader */
-        csvReader = new CSVReader(new ChannelReader(), sqlSinkHelper.getDelimiterEntry().charAt(0));
+        /* Consumer used by the sink runner thread when no workers are configured */
+        if (batchConsumer == null) {
+            batchConsumer = new BatchConsumer(this, false);
+        }
         
     }  
     
     /**
-     * Process a batch of events performing SQL Queries
+     * Process a batch of events performing SQL Queries.
+     * When consumer workers are configured they take from the channel themselves,
+     * so the sink runner thread only idles here.
      */
 	@Override
 	public Status process() {
 
-        Status status = Status.READY;
-
-        List<String[]> lines = new ArrayList<>();
-        String[] line;
-
-        Channel channel = getChannel();
-        Transaction transaction = channel.getTransaction();
-        transaction.begin();
-
-        do {
-            try {
-                line = csvReader.readNext();
-                if (line[0].length()>0) {
-                    lines.add(line);
-                } else {
-                    status = Status.BACKOFF;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                break;
-            }
-        } while (line[0].length() > 0 && lines.size() < sqlSinkHelper.getBatchSize());
-
-        if(lines.size() > 0) {
-            LOG.info(lines.size() + " lines till " + String.join(",", lines.get(lines.size() - 1)));
-
-            try {
-                hibernateHelper.executeQuery(lines);
-            } catch(Exception e) {
-                LOG.error("executeQuery error " + lines.size() + " lines");
-            }
+        if (!workers.isEmpty()) {
+            return Status.BACKOFF;
         }
 
-        transaction.commit();
-        transaction.close();
-
-        if(lines.size() > 0) {
-
-            if(lines.size() >= sqlSinkHelper.getBatchSize()) {
-                autoBatchDuration = 0;
-            } else if (sqlSinkHelper.getBatchSize() > 0 && sqlSinkHelper.getMaxDuration() > 0) {
-                double percent = 1.0 - lines.size() * 1.0 / sqlSinkHelper.getBatchSize();
-                if (percent >= 0.5)
-                    autoBatchDuration = (int) (sqlSinkHelper.getMaxDuration() * percent);
-            }
-
-            if (autoBatchDuration > 0) {
-                try {
-
-                    LOG.info("Wait for " + autoBatchDuration + " milliseconds");
-                    Thread.sleep(autoBatchDuration);
-
-                } catch (Exception e) {
-
-                }
-            }
-        }
-
-        return status;
+        return batchConsumer.consume();
 	}
  
 	/**
-	 * Starts the source. Starts the metrics counter.
+	 * Starts the source. Starts the metrics counter and the consumer workers.
 	 */
 	@Override
     public void start() {
         
     	LOG.info("Starting sql sink {} ...", getName());
         sqlSinkCounter.start();
+        stopSignal = new CountDownLatch(1);
+
+        if (hibernateHelper == null) {
+            hibernateHelper = acquireHibernateHelper(getName(), null, sqlSinkHelper);
+            mirrors = acquireMirrors(sqlSinkHelper);
+            sqlSinkCounter.setRateLimitControl(hibernateHelper.getWriteScheduler());
+        }
+        hibernateHelper.connectAsync();
+
+        int consumerThreads = sqlSinkHelper.getConsumerThreads();
+        if (!mirrors.isEmpty()) {
+            for (SinkMirror mirror : mirrors) {
+                mirror.hibernateHelper.connectAsync();
+            }
+            mirrorExecutor = Executors.newFixedThreadPool(mirrors.size() * Math.max(1, consumerThreads), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SQLSink-" + getName() + "-mirror");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        /* Write-behind holds channel transactions across batches, which only works on threads of the sink's own */
+        if (consumerThreads > 1 || sqlSinkHelper.getWriteBehindRows() > 0) {
+            for (int i = 0; i < Math.max(1, consumerThreads); i++) {
+                Thread worker = new Thread(new ConsumerWorker(), "SQLSink-" + getName() + "-consumer-" + i);
+                worker.setDaemon(true);
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.start();
+            }
+            LOG.info("Started {} consumer workers for sql sink {}", workers.size(), getName());
+        }
+
         super.start();
     }
 
 	/**
-	 * Stop the source. Close database connection and stop metrics counter.
+	 * Stop the source. Let the workers finish their in-flight batch, then close database connection and stop metrics counter.
 	 */
     @Override
     public void stop() {
         
         LOG.info("Stopping sql sink {} ...", getName());
-        
-        try 
-        {
-            hibernateHelper.closeSession();
-            csvReader.close();
-        } catch (IOException e) {
-        	LOG.warn("Error CSVReader object ", e);
+        stopSignal.countDown();
+
+        try {
+            long deadline = System.currentTimeMillis() + sqlSinkHelper.getConsumerShutdownTimeout();
+            for (Thread worker : workers) {
+                try {
+                    worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (worker.isAlive()) {
+                    LOG.warn("Consumer worker {} did not finish its batch before shutdown", worker.getName());
+                }
+            }
+            workers.clear();
+            if (mirrorExecutor != null) {
+                mirrorExecutor.shutdown();
+                mirrorExecutor = null;
+            }
+            for (SinkMirror mirror : mirrors) {
+                releaseHibernateHelper(mirrorKey(mirror.name), mirror.hibernateHelper);
+            }
+            mirrors = Collections.emptyList();
+            if (hibernateHelper != null) {
+                releaseHibernateHelper(getName(), hibernateHelper);
+                hibernateHelper = null;
+            }
         } finally {
         	this.sqlSinkCounter.stop();
         	super.stop();
         }
     }
-    
-    private class ChannelReader extends Reader{
-        private char[] remainBytes = new char[0];
 
-        @Override
-        public int read(char[] cbuf, int off, int len) throws IOException {
-            Channel channel = getChannel();
-            int bytesRead = 0;
-
-            if(remainBytes.length > 0) {
-                bytesRead = len - off >= remainBytes.length ? remainBytes.length : len - off;
-                System.arraycopy(remainBytes, 0, cbuf, off, bytesRead);
-                if(bytesRead < remainBytes.length) {
-                    char[] temp = remainBytes;
-                    remainBytes = new char[temp.length - bytesRead];
-                    System.arraycopy(temp, bytesRead, remainBytes, 0, temp.length - bytesRead);
-                }
-                return bytesRead;
-            } else {
-                try {
-                    Event event = channel.take();
-
-                    if (event != null) {
-                        String body = new String(event.getBody(), Charset.forName(sqlSinkHelper.getDefaultCharsetResultSet()));
-                        body = body.trim() + "\r\n";
-                        bytesRead = len - off >= body.length() ? body.length() : len - off;
-                        System.arraycopy(body.toCharArray(), 0, cbuf, off, bytesRead);
-                        remainBytes = body.substring(bytesRead).toCharArray();
-                    }
-                } catch (Exception e) {
-                    LOG.error("Unable to read flume event", e);
+    /**
+     * Get the hibernate helper for the given configuration, reusing the one already registered
+     * under this key if it connects the same way.
+     * @param own the helper currently used by this sink for that key, if any
+     */
+    private HibernateHelper acquireHibernateHelper(String key, HibernateHelper own, SQLSinkHelper newSqlSinkHelper) {
+        synchronized (HIBERNATE_HELPERS) {
+            HibernateHelper current = HIBERNATE_HELPERS.get(key);
+
+            if (current != null && HibernateHelper.sameConnection(current.getSqlSinkHelper(), newSqlSinkHelper)) {
+                LOG.info("Keeping database connection of sql sink {}", key);
+                if (current != own) {
+                    current.retain();
                 }
+                current.setSqlSinkHelper(newSqlSinkHelper);
+                return current;
             }
 
-            if(bytesRead <= 0) {
-                cbuf[off] = '\n';
-                bytesRead = 1;
+            if (own != null) {
+                releaseHibernateHelper(key, own);
             }
+            HibernateHelper helper = new HibernateHelper(newSqlSinkHelper);
+            HIBERNATE_HELPERS.put(key, helper);
+            return helper;
+        }
+    }
 
-            return bytesRead;
+    /**
+     * Get the hibernate helpers of the configured mirrors, keeping the connections of the unchanged ones
+     */
+    private List<SinkMirror> acquireMirrors(SQLSinkHelper newSqlSinkHelper) {
+        Map<String, HibernateHelper> current = new HashMap<>();
+        for (SinkMirror mirror : mirrors) {
+            current.put(mirror.name, mirror.hibernateHelper);
         }
-/*
-        @Override
-        public void flush() throws IOException {
-            //getChannelProcessor().processEventBatch(events);
-            events.clear();
-        }*/
+
+        List<SinkMirror> newMirrors = new ArrayList<>();
+        for (String name : newSqlSinkHelper.getMirrors()) {
+            SQLSinkHelper mirrorSqlSinkHelper = new SQLSinkHelper(newSqlSinkHelper.getMirrorContext(name));
+            HibernateHelper helper = acquireHibernateHelper(mirrorKey(name), current.remove(name), mirrorSqlSinkHelper);
+            newMirrors.add(new SinkMirror(name, helper,
+                    !SQLSinkHelper.FAILURE_POLICY_IGNORE.equals(mirrorSqlSinkHelper.getFailurePolicy())));
+        }
+
+        for (Map.Entry<String, HibernateHelper> removed : current.entrySet()) {
+            releaseHibernateHelper(mirrorKey(removed.getKey()), removed.getValue());
+        }
+        return newMirrors;
+    }
+
+    /**
+     * @return the key of a mirror, naming its hibernate helper and its watermarks
+     */
+    String mirrorKey(String mirror) {
+        return getName() + "#mirror." + mirror;
+    }
+
+    /**
+     * Give a hibernate helper back, closing it when no other sink uses it
+     */
+    private void releaseHibernateHelper(String key, HibernateHelper helper) {
+        synchronized (HIBERNATE_HELPERS) {
+            if (helper.release()) {
+                helper.closeSession();
+                if (HIBERNATE_HELPERS.get(key) == helper) {
+                    HIBERNATE_HELPERS.remove(key);
+                }
+            } else {
+                helper.releaseOrphanSessions();
+            }
+        }
+    }
+
+    /**
+     * Wait for the given time unless the sink is being stopped.
+     * @return true if the sink is stopping
+     */
+    boolean awaitStop(long milliseconds) {
+        try {
+            return stopSignal.await(milliseconds, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    SQLSinkHelper getSqlSinkHelper() {
+        return sqlSinkHelper;
+    }
+
+    HibernateHelper getHibernateHelper() {
+        return hibernateHelper;
+    }
+
+    List<SinkMirror> getMirrors() {
+        return mirrors;
+    }
+
+    ExecutorService getMirrorExecutor() {
+        return mirrorExecutor;
+    }
+
+    /**
+     * Consumer thread with its own channel transaction, parser and hibernate session.
+     * Backs off like the sink runner does while the channel is empty.
+     */
+    private class ConsumerWorker implements Runnable {
 
         @Override
-        public void close() throws IOException {
-            //flush();
+        public void run() {
+            BatchConsumer consumer = new BatchConsumer(SQLSink.this, true);
+            long backoff = 0;
+
+            try {
+                while (stopSignal.getCount() > 0) {
+                    try {
+                        if (consumer.consume() == Status.BACKOFF) {
+                            backoff = Math.min(backoff + WORKER_BACKOFF_INCREMENT, WORKER_MAX_BACKOFF);
+                            awaitStop(backoff);
+                        } else {
+                            backoff = 0;
+                        }
+                    } catch (Exception e) {
+                        LOG.error("Unable to process batch", e);
+                        awaitStop(WORKER_MAX_BACKOFF);
+                    }
+                }
+            } finally {
+                consumer.flushWriteBehind();
+                HibernateHelper helper = hibernateHelper;
+                if (helper != null) {
+                    helper.releaseSession();
+                }
+            }
         }
     }
 }
@@ -1,7 +1,10 @@
 package org.ricco.flume.sink;
 
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.flume.conf.ConfigurationException;
 import org.apache.flume.Context;
@@ -19,6 +22,32 @@ import org.slf4j.LoggerFactory;
  * <tt>status.file.path: </tt> Directory to save status file <p>
  * <tt>status.file.name: </tt> Name for status file (saves last row index processed) <p>
  * <tt>batch.size: </tt> Batch size to send events from flume source to flume channel <p>
+ * <tt>batch.bytes: </tt> Max total event body bytes taken from the channel in one batch (0 disables the limit) <p>
+ * <tt>consumer.threads: </tt> Number of consumer workers taking from the channel in parallel (1 uses the sink runner thread) <p>
+ * <tt>consumer.shutdown.timeout: </tt> ms to wait on stop for the workers to finish their in-flight batch <p>
+ * <tt>connection.failover.urls: </tt> Comma separated connection urls tried in order when the current database is down <p>
+ * <tt>connection.failure.threshold: </tt> Consecutive connection failures that open the circuit breaker <p>
+ * <tt>connection.backoff.initial: </tt> ms the circuit stays open the first time, doubled on every reopening <p>
+ * <tt>connection.backoff.max: </tt> Max ms the circuit stays open <p>
+ * <tt>connection.validation.interval: </tt> ms a successful connection validation is trusted <p>
+ * <tt>connection.validation.timeout: </tt> Seconds to wait for a connection validation <p>
+ * <tt>columns.transform.&lt;column&gt;: </tt> Transform chain applied to the column value before insert, see {@link ColumnTransform} <p>
+ * <tt>write.behind.rows: </tt> Records a table buffers across batches before they are written (0 writes every batch at once) <p>
+ * <tt>write.behind.age: </tt> Max ms the channel transaction of buffered records is held before every table is written <p>
+ * <tt>write.behind.max.events: </tt> Max events held in the channel transaction of buffered records, at most the channel transactionCapacity, 100 by default <p>
+ * <tt>write.chunk.size: </tt> Rows written per table in one turn before the next table, times the table weight (0 writes every table at once) <p>
+ * <tt>table.weight.&lt;table&gt;: </tt> Turns of chunks a table gets in the round robin, 1 by default. A dated table is named with # for its date <p>
+ * <tt>rate.limit: </tt> Max rows per second written by the sink (0 disables the limit) <p>
+ * <tt>rate.limit.table: </tt> Max rows per second written to each table, rate.limit.table.&lt;table&gt; overrides it for one table <p>
+ * <tt>sort.columns: </tt> Comma separated columns each table group is sorted by before insert, e.g. the clustered index key. Index order is followed for unsigned integers and plain strings only <p>
+ * <tt>archive.body.column: </tt> Column receiving the raw event body, enables the archival mode <p>
+ * <tt>archive.body.type: </tt> How the raw body is bound: binary (setBytes), stream (setBinaryStream) or text (setCharacterStream) <p>
+ * <tt>archive.header.columns: </tt> Event headers stored along, as comma separated header:column pairs <p>
+ * <tt>mirrors: </tt> Comma separated names of destination databases written along with this one, each configured by mirror.&lt;name&gt;.* properties overriding the sink ones <p>
+ * <tt>mirror.commit.policy: </tt> Destinations that must write a batch before it is committed to the channel: all, quorum or primary <p>
+ * <tt>failure.policy: </tt> block if the failures of a mirror hold back the channel commit, ignore to drop its failed records <p>
+ * <tt>watermark.table: </tt> Table recording the applied batches in the same transaction as their records, enables exactly-once writes <p>
+ * <tt>watermark.header: </tt> Event header identifying a batch by its first event (defaults to a hash of the event body) <p>
  * <tt>max.rows: </tt> Max rows to import from DB in one query <p>
  * <tt>custom.query: </tt> Custom query to execute to database (be careful) <p>
  *
@@ -31,12 +60,43 @@ public class SQLSinkHelper {
 
   private int tableTimeColumn;
   private int batchSize;
+  private long batchBytes;
   private int maxDuration;
+  private Charset charset;
+  private int consumerThreads;
+  private long consumerShutdownTimeout;
+  private List<String> failoverURLs = new ArrayList<>();
+  private int connectionFailureThreshold;
+  private long connectionBackoffInitial;
+  private long connectionBackoffMax;
+  private long connectionValidationInterval;
+  private int connectionValidationTimeout;
   private String connectionURL, tablePrefix,tableFormatter,
           delimiterEntry, connectionUserName, connectionPassword,
 		defaultCharsetResultSet;
   private List<String> columnsToInsert = new ArrayList<>();
   private List<Integer> columnIndexes = new ArrayList<>();
+  private ColumnTransform[] columnTransforms;
+  private int[] sortParams = new int[0];
+  private int writeChunkSize;
+  private int writeBehindRows;
+  private long writeBehindAge;
+  private int writeBehindMaxEvents;
+  private Map<String, Integer> tableWeights = new HashMap<>();
+  private long rateLimit;
+  private long tableRateLimit;
+  private Map<String, Long> tableRateLimits = new HashMap<>();
+  private String archiveBodyColumn;
+  private String archiveBodyType;
+  private List<String> archiveHeaders = new ArrayList<>();
+  private List<String> archiveHeaderColumns = new ArrayList<>();
+  private int keyFieldCount;
+  private String watermarkTable;
+  private List<String> mirrors = new ArrayList<>();
+  private String mirrorCommitPolicy;
+  private String failurePolicy;
+  private String watermarkHeader;
+  private boolean asciiCompatible;
 
   private Context context;
 
@@ -44,8 +104,30 @@ public class SQLSinkHelper {
   private static final int DEFAULT_TABLE_TIME_COLUMN = 0;
   private static final String DEFAULT_TABLE_TIME_FORMATTER = "yyyy";
   private static final int DEFAULT_BATCH_SIZE = 10000;
+  private static final long DEFAULT_BATCH_BYTES = 64L * 1024 * 1024;
   private static final int DEFAULT_MAX_DURATION = 0;
   private static final String DEFAULT_CHARSET_RESULTSET = "UTF-8";
+  private static final int DEFAULT_CONSUMER_THREADS = 1;
+  private static final long DEFAULT_CONSUMER_SHUTDOWN_TIMEOUT = 30000;
+  private static final int DEFAULT_CONNECTION_FAILURE_THRESHOLD = 3;
+  private static final long DEFAULT_CONNECTION_BACKOFF_INITIAL = 1000;
+  private static final long DEFAULT_CONNECTION_BACKOFF_MAX = 60000;
+  private static final long DEFAULT_CONNECTION_VALIDATION_INTERVAL = 30000;
+  private static final int DEFAULT_CONNECTION_VALIDATION_TIMEOUT = 5;
+  private static final int DEFAULT_WRITE_CHUNK_SIZE = 0;
+  private static final int DEFAULT_WRITE_BEHIND_ROWS = 0;
+  private static final long DEFAULT_WRITE_BEHIND_AGE = 5000;
+  /* The default transactionCapacity of a memory channel */
+  private static final int DEFAULT_WRITE_BEHIND_MAX_EVENTS = 100;
+  private static final long DEFAULT_RATE_LIMIT = 0;
+  static final String ARCHIVE_BODY_BINARY = "binary";
+  static final String ARCHIVE_BODY_STREAM = "stream";
+  static final String ARCHIVE_BODY_TEXT = "text";
+  static final String MIRROR_COMMIT_ALL = "all";
+  static final String MIRROR_COMMIT_QUORUM = "quorum";
+  static final String MIRROR_COMMIT_PRIMARY = "primary";
+  static final String FAILURE_POLICY_BLOCK = "block";
+  static final String FAILURE_POLICY_IGNORE = "ignore";
 
   /**
    * Builds an SQLSinkHelper containing the configuration parameters and
@@ -62,6 +144,7 @@ public class SQLSinkHelper {
     tablePrefix = context.getString("table.prefix");
     columnsToInsertString = context.getString("columns.to.insert");
     batchSize = context.getInteger("batch.size", DEFAULT_BATCH_SIZE);
+    batchBytes = context.getLong("batch.bytes", DEFAULT_BATCH_BYTES);
     maxDuration = context.getInteger("max.duration", DEFAULT_MAX_DURATION);
     timeColumn = context.getString("table.time.column", String.valueOf(DEFAULT_TABLE_TIME_COLUMN));
     tableFormatter = context.getString("table.formatter", DEFAULT_TABLE_TIME_FORMATTER);
@@ -70,6 +153,22 @@ public class SQLSinkHelper {
     connectionPassword = context.getString("hibernate.connection.password");
     delimiterEntry = context.getString("delimiter.entry", DEFAULT_DELIMITER_ENTRY);
     defaultCharsetResultSet = context.getString("default.charset.resultset", DEFAULT_CHARSET_RESULTSET);
+    consumerThreads = context.getInteger("consumer.threads", DEFAULT_CONSUMER_THREADS);
+    consumerShutdownTimeout = context.getLong("consumer.shutdown.timeout", DEFAULT_CONSUMER_SHUTDOWN_TIMEOUT);
+    connectionFailureThreshold = context.getInteger("connection.failure.threshold", DEFAULT_CONNECTION_FAILURE_THRESHOLD);
+    connectionBackoffInitial = context.getLong("connection.backoff.initial", DEFAULT_CONNECTION_BACKOFF_INITIAL);
+    connectionBackoffMax = context.getLong("connection.backoff.max", DEFAULT_CONNECTION_BACKOFF_MAX);
+    connectionValidationInterval = context.getLong("connection.validation.interval", DEFAULT_CONNECTION_VALIDATION_INTERVAL);
+    connectionValidationTimeout = context.getInteger("connection.validation.timeout", DEFAULT_CONNECTION_VALIDATION_TIMEOUT);
+
+    String failoverURLsString = context.getString("connection.failover.urls");
+    if (failoverURLsString != null) {
+        for (String url : failoverURLsString.split(",")) {
+            if (url.trim().length() > 0) {
+                failoverURLs.add(url.trim());
+            }
+        }
+    }
 
     if(columnsToInsertString != null) {
         String[] columns = columnsToInsertString.split(",");
@@ -82,6 +181,66 @@ public class SQLSinkHelper {
         }
     }
 
+    try {
+        charset = Charset.forName(defaultCharsetResultSet != null ? defaultCharsetResultSet : DEFAULT_CHARSET_RESULTSET);
+    } catch (Exception e) {
+        throw new ConfigurationException("Unsupported charset " + defaultCharsetResultSet, e);
+    }
+
+    /* Compile the column transforms, aligned with the insert parameters */
+    columnTransforms = new ColumnTransform[columnsToInsert.size()];
+    Map<String, String> transforms = context.getSubProperties("columns.transform.");
+    if (transforms != null) {
+        for (Map.Entry<String, String> transform : transforms.entrySet()) {
+            int column = columnsToInsert.indexOf(transform.getKey().trim().toLowerCase());
+            if (column < 0) {
+                throw new ConfigurationException("Transform declared for unknown column " + transform.getKey());
+            }
+            columnTransforms[column] = ColumnTransform.compile(transform.getValue());
+        }
+    }
+
+    writeChunkSize = context.getInteger("write.chunk.size", DEFAULT_WRITE_CHUNK_SIZE);
+    writeBehindRows = context.getInteger("write.behind.rows", DEFAULT_WRITE_BEHIND_ROWS);
+    writeBehindAge = context.getLong("write.behind.age", DEFAULT_WRITE_BEHIND_AGE);
+    writeBehindMaxEvents = context.getInteger("write.behind.max.events", DEFAULT_WRITE_BEHIND_MAX_EVENTS);
+    rateLimit = context.getLong("rate.limit", DEFAULT_RATE_LIMIT);
+    tableRateLimit = context.getLong("rate.limit.table", DEFAULT_RATE_LIMIT);
+    try {
+        Map<String, String> weights = context.getSubProperties("table.weight.");
+        if (weights != null) {
+            for (Map.Entry<String, String> weight : weights.entrySet()) {
+                tableWeights.put(weight.getKey(), Integer.parseInt(weight.getValue().trim()));
+            }
+        }
+        Map<String, String> limits = context.getSubProperties("rate.limit.table.");
+        if (limits != null) {
+            for (Map.Entry<String, String> limit : limits.entrySet()) {
+                tableRateLimits.put(limit.getKey(), Long.parseLong(limit.getValue().trim()));
+            }
+        }
+    } catch (NumberFormatException e) {
+        throw new ConfigurationException("Invalid table weight or rate limit", e);
+    }
+
+    String sortColumnsString = context.getString("sort.columns");
+    if (sortColumnsString != null) {
+        List<Integer> params = new ArrayList<>();
+        for (String column : sortColumnsString.split(",")) {
+            if (column.trim().length() > 0) {
+                int param = columnsToInsert.indexOf(column.trim().toLowerCase());
+                if (param < 0) {
+                    throw new ConfigurationException("Sort declared for unknown column " + column);
+                }
+                params.add(param);
+            }
+        }
+        sortParams = new int[params.size()];
+        for (int i = 0; i < sortParams.length; i++) {
+            sortParams[i] = params.get(i);
+        }
+    }
+
     tableTimeColumn = DEFAULT_TABLE_TIME_COLUMN;
     try {
         tableTimeColumn = Integer.parseInt(timeColumn);
@@ -89,10 +248,57 @@ public class SQLSinkHelper {
         tableTimeColumn = columnsToInsert.indexOf(tableTimeColumn);
     }
 
+    archiveBodyColumn = context.getString("archive.body.column");
+    archiveBodyType = context.getString("archive.body.type", ARCHIVE_BODY_BINARY);
+    String archiveHeadersString = context.getString("archive.header.columns");
+    if (archiveHeadersString != null) {
+        for (String pair : archiveHeadersString.split(",")) {
+            if (pair.trim().length() > 0) {
+                String[] headerColumn = pair.split(":", 2);
+                archiveHeaders.add(headerColumn[0].trim());
+                archiveHeaderColumns.add((headerColumn.length > 1 ? headerColumn[1] : headerColumn[0]).trim().toLowerCase());
+            }
+        }
+    }
+
+    watermarkTable = context.getString("watermark.table");
+    watermarkHeader = context.getString("watermark.header");
+
+    String mirrorsString = context.getString("mirrors");
+    if (mirrorsString != null) {
+        for (String mirror : mirrorsString.split(",")) {
+            if (mirror.trim().length() > 0) {
+                mirrors.add(mirror.trim());
+            }
+        }
+    }
+    mirrorCommitPolicy = context.getString("mirror.commit.policy", MIRROR_COMMIT_ALL);
+    failurePolicy = context.getString("failure.policy", FAILURE_POLICY_BLOCK);
+
+    /* Fields needed to route and insert a record, an archived body is only parsed that far */
+    keyFieldCount = Math.max(0, tableTimeColumn);
+    for (int index : columnIndexes) {
+        keyFieldCount = Math.max(keyFieldCount, index + 1);
+    }
+    if (tablePrefix != null) {
+        Matcher matcher = Pattern.compile("@(\\d+)").matcher(tablePrefix);
+        while (matcher.find()) {
+            keyFieldCount = Math.max(keyFieldCount, Integer.parseInt(matcher.group(1)));
+        }
+    }
+
+    /* The key fields can be found in the raw bytes when delimiter, quote and line feed are single ASCII bytes */
+    if (delimiterEntry != null && delimiterEntry.length() > 0) {
+        byte[] delimiter = delimiterEntry.substring(0, 1).getBytes(charset);
+        byte[] quoteAndLineFeed = "\"\n".getBytes(charset);
+        asciiCompatible = delimiter.length == 1 && delimiter[0] == delimiterEntry.charAt(0)
+                && quoteAndLineFeed.length == 2 && quoteAndLineFeed[0] == '"' && quoteAndLineFeed[1] == '\n';
+    }
+
     checkMandatoryProperties();
   }
 
-  private String buildExpression(String expression, String[] values) {
+  private String buildExpression(String expression, String[] values, boolean formatDate) {
       try {
           if (expression.contains("@")) {
               for (int i = Math.max(values.length, columnsToInsert.size()); i >= 1; i--) {
@@ -100,7 +306,7 @@ public class SQLSinkHelper {
                   expression = expression.replace("@" + i, replacement);
               }
           }
-          if (tableTimeColumn > 0 && tableTimeColumn <= values.length && expression.contains("#")) {
+          if (formatDate && tableTimeColumn > 0 && tableTimeColumn <= values.length && expression.contains("#")) {
               SimpleDateFormat sdf = new SimpleDateFormat(tableFormatter);
               Date date = sdf.parse(values[tableTimeColumn - 1]);
 
@@ -114,7 +320,14 @@ public class SQLSinkHelper {
   }
 
   public String buildTableName(String[] values) {
-      return buildExpression(tablePrefix, values);
+      return buildExpression(tablePrefix, values, true);
+  }
+
+  /**
+   * @return the table name with its date part left as #, which keeps naming the table when the date rolls over
+   */
+  String buildTableKey(String[] values) {
+      return buildExpression(tablePrefix, values, false);
   }
 
   public String buildInsertQuery(String tableName, List<Integer> paramArray) {
@@ -125,10 +338,20 @@ public class SQLSinkHelper {
           insertValues.add("?");
       }
 
+      /* Archived header values and raw body are bound after the parsed fields */
+      List<String> insertColumns = new ArrayList<>(columnsToInsert);
+      insertColumns.addAll(archiveHeaderColumns);
+      if (archiveBodyColumn != null) {
+          insertColumns.add(archiveBodyColumn);
+      }
+      for (int i = columnIndexes.size(); i < insertColumns.size(); i++) {
+          insertValues.add("?");
+      }
+
       query = "insert into " +
               tableName +
               "(" +
-              String.join(",", columnsToInsert) +
+              String.join(",", insertColumns) +
               ") values (" +
               String.join(",", insertValues) +
               ")";
@@ -193,16 +416,197 @@ public class SQLSinkHelper {
     if (connectionPassword == null) {
       throw new ConfigurationException("hibernate.connection.password property not set");
     }
+
+    if (archiveBodyColumn != null && !ARCHIVE_BODY_BINARY.equals(archiveBodyType)
+            && !ARCHIVE_BODY_STREAM.equals(archiveBodyType) && !ARCHIVE_BODY_TEXT.equals(archiveBodyType)) {
+      throw new ConfigurationException("archive.body.type must be binary, stream or text");
+    }
+
+    if (!mirrors.isEmpty() && !MIRROR_COMMIT_ALL.equals(mirrorCommitPolicy)
+            && !MIRROR_COMMIT_QUORUM.equals(mirrorCommitPolicy) && !MIRROR_COMMIT_PRIMARY.equals(mirrorCommitPolicy)) {
+      throw new ConfigurationException("mirror.commit.policy must be all, quorum or primary");
+    }
+
+    if (watermarkTable != null && watermarkHeader == null) {
+      throw new ConfigurationException("watermark.table requires watermark.header, a header unique per event");
+    }
+
+    if (watermarkTable != null && consumerThreads > 1) {
+      throw new ConfigurationException("watermark.table cannot be combined with consumer.threads, workers take the events interleaved");
+    }
+
+    if (writeBehindRows > 0 && watermarkTable != null) {
+      throw new ConfigurationException("write.behind.rows cannot be combined with watermark.table");
+    }
+
+    if (failurePolicy != null && !FAILURE_POLICY_BLOCK.equals(failurePolicy) && !FAILURE_POLICY_IGNORE.equals(failurePolicy)) {
+      throw new ConfigurationException("failure.policy must be block or ignore");
+    }
   }
 
   int getBatchSize() {
       return batchSize;
   }
 
+  long getBatchBytes() {
+      return batchBytes;
+  }
+
   int getMaxDuration() {
       return maxDuration;
   }
 
+  int getConsumerThreads() {
+      return consumerThreads;
+  }
+
+  long getConsumerShutdownTimeout() {
+      return consumerShutdownTimeout;
+  }
+
+  List<String> getFailoverURLs() {
+      return failoverURLs;
+  }
+
+  int getConnectionFailureThreshold() {
+      return connectionFailureThreshold;
+  }
+
+  long getConnectionBackoffInitial() {
+      return connectionBackoffInitial;
+  }
+
+  long getConnectionBackoffMax() {
+      return connectionBackoffMax;
+  }
+
+  long getConnectionValidationInterval() {
+      return connectionValidationInterval;
+  }
+
+  int getConnectionValidationTimeout() {
+      return connectionValidationTimeout;
+  }
+
+  /**
+   * @return the compiled transform of every insert parameter, null where the column has none
+   */
+  ColumnTransform[] getColumnTransforms() {
+      return columnTransforms;
+  }
+
+  /**
+   * @return the records a table buffers before they are written, 0 if write-behind is disabled
+   */
+  int getWriteBehindRows() {
+      return writeBehindRows;
+  }
+
+  long getWriteBehindAge() {
+      return writeBehindAge;
+  }
+
+  int getWriteBehindMaxEvents() {
+      return writeBehindMaxEvents;
+  }
+
+  int getWriteChunkSize() {
+      return writeChunkSize;
+  }
+
+  Map<String, Integer> getTableWeights() {
+      return tableWeights;
+  }
+
+  long getRateLimit() {
+      return rateLimit;
+  }
+
+  long getTableRateLimit() {
+      return tableRateLimit;
+  }
+
+  Map<String, Long> getTableRateLimits() {
+      return tableRateLimits;
+  }
+
+  /**
+   * @return the record fields bound to the inserted columns, in insert parameter order
+   */
+  List<Integer> getColumnIndexes() {
+      return columnIndexes;
+  }
+
+  /**
+   * @return the insert parameters the rows of a table are sorted by, empty to keep the arrival order
+   */
+  int[] getSortParams() {
+      return sortParams;
+  }
+
+  String getArchiveBodyColumn() {
+      return archiveBodyColumn;
+  }
+
+  String getArchiveBodyType() {
+      return archiveBodyType;
+  }
+
+  List<String> getArchiveHeaders() {
+      return archiveHeaders;
+  }
+
+  List<String> getMirrors() {
+      return mirrors;
+  }
+
+  /**
+   * Configuration of a mirror: the sink properties overridden by the mirror.&lt;name&gt;.* ones
+   */
+  Context getMirrorContext(String mirror) {
+      Map<String, String> parameters = new HashMap<>();
+      for (Map.Entry<String, String> e : context.getParameters().entrySet()) {
+          if (!e.getKey().equals("mirrors") && !e.getKey().startsWith("mirror.")) {
+              parameters.put(e.getKey(), e.getValue());
+          }
+      }
+      parameters.putAll(context.getSubProperties("mirror." + mirror + "."));
+      return new Context(parameters);
+  }
+
+  String getMirrorCommitPolicy() {
+      return mirrorCommitPolicy;
+  }
+
+  String getFailurePolicy() {
+      return failurePolicy;
+  }
+
+  /**
+   * @return the watermark table, or null if batches are not tracked
+   */
+  String getWatermarkTable() {
+      return watermarkTable;
+  }
+
+  String getWatermarkHeader() {
+      return watermarkHeader;
+  }
+
+  /**
+   * @return number of leading fields needed to route and insert a record
+   */
+  int getKeyFieldCount() {
+      return keyFieldCount;
+  }
+
+  /**
+   * @return true if delimiter, quote and line feed are single ASCII bytes in the configured charset
+   */
+  boolean isAsciiCompatible() {
+      return asciiCompatible;
+  }
+
   String getConnectionURL() {
     return connectionURL;
   }
@@ -226,4 +630,8 @@ public class SQLSinkHelper {
   public String getDefaultCharsetResultSet() {
     return defaultCharsetResultSet;
   }
+
+  Charset getCharset() {
+    return charset;
+  }
 }
@@ -0,0 +1,21 @@
+package org.ricco.flume.sink;
+
+/**
+ * A destination database written in parallel with the primary one. The events are parsed once,
+ * every destination routes the records with its own table template and writes them on its own connection.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+class SinkMirror {
+
+    final String name;
+    final HibernateHelper hibernateHelper;
+    /* false if the failures of this mirror never hold back the channel commit */
+    final boolean blocking;
+
+    SinkMirror(String name, HibernateHelper hibernateHelper, boolean blocking) {
+        this.name = name;
+        this.hibernateHelper = hibernateHelper;
+        this.blocking = blocking;
+    }
+}
@@ -0,0 +1,29 @@
+package org.ricco.flume.sink;
+
+/**
+ * A record to insert: the parsed fields of a line, plus the raw event body and the
+ * captured header values when archival columns are configured.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+class SinkRow {
+
+    final String[] values;
+    final byte[] body;
+    final String[] headers;
+
+    SinkRow(String[] values) {
+        this(values, null, null);
+    }
+
+    SinkRow(String[] values, byte[] body, String[] headers) {
+        this.values = values;
+        this.body = body;
+        this.headers = headers;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", values);
+    }
+}
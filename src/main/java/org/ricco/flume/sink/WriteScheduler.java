@@ -0,0 +1,275 @@
+package org.ricco.flume.sink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ricco.flume.metrics.RateLimitControl;
+
+/**
+ * Orders the table groups of a batch into chunks and paces them with token buckets.<p>
+ * Every table gets up to <tt>write.chunk.size</tt> times its <tt>table.weight.&lt;table&gt;</tt> rows per turn,
+ * in round robin, starting with a different table on every batch, so a hot table does not hold the others back.
+ * The sink wide <tt>rate.limit</tt> and the per table <tt>rate.limit.table</tt> are token buckets in rows per second
+ * holding at most one second of tokens. A table running out of tokens lets the other tables write first.
+ * A limit of 0 disables it.<p>
+ * Weights, limits and buckets are kept by table key, the table name with its date part left as <tt>#</tt>, so they
+ * carry over to the next table when the date rolls over. A table configured under its full name keeps that name.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+class WriteScheduler implements RateLimitControl {
+
+    /* How often the buckets of the tables no longer written to are dropped */
+    private static final long PRUNE_INTERVAL_NANOS = 60000000000L;
+
+    private volatile long rateLimit;
+    private volatile long tableRateLimit;
+    private volatile Map<String, Long> tableRateLimits = Collections.emptyMap();
+    private volatile Map<String, Integer> tableWeights = Collections.emptyMap();
+    private volatile int chunkSize;
+    private volatile SQLSinkHelper sqlSinkHelper;
+
+    private final TokenBucket bucket = new TokenBucket();
+    private final Map<String, TokenBucket> tableBuckets = new HashMap<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+    private long pruned = System.nanoTime();
+
+    /**
+     * Apply the limits, weights and chunk size of a configuration, the token buckets are kept
+     */
+    void configure(SQLSinkHelper sqlSinkHelper) {
+        rateLimit = sqlSinkHelper.getRateLimit();
+        tableRateLimit = sqlSinkHelper.getTableRateLimit();
+        tableRateLimits = sqlSinkHelper.getTableRateLimits();
+        tableWeights = sqlSinkHelper.getTableWeights();
+        chunkSize = sqlSinkHelper.getWriteChunkSize();
+        this.sqlSinkHelper = sqlSinkHelper;
+    }
+
+    @Override
+    public long getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * Set the limit of the sink, until the sink is reconfigured
+     */
+    @Override
+    public void setRateLimit(long rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    @Override
+    public long getTableRateLimit() {
+        return tableRateLimit;
+    }
+
+    /**
+     * Set the limit of the tables without a limit of their own, until the sink is reconfigured
+     */
+    @Override
+    public void setTableRateLimit(long tableRateLimit) {
+        this.tableRateLimit = tableRateLimit;
+    }
+
+    /**
+     * Start scheduling the table groups of a batch
+     */
+    Round schedule(Map<String, List<SinkRow>> linesMap) {
+        List<Group> groups = new ArrayList<>();
+        for (Map.Entry<String, List<SinkRow>> e : linesMap.entrySet()) {
+            groups.add(new Group(e.getKey(), keyOf(e.getKey(), e.getValue()), e.getValue()));
+        }
+        if (groups.size() > 1) {
+            Collections.sort(groups);
+            Collections.rotate(groups, -(rotation.getAndIncrement() & Integer.MAX_VALUE) % groups.size());
+        }
+        return new Round(groups);
+    }
+
+    /**
+     * @return the key the weight, limit and bucket of a table are kept by
+     */
+    private String keyOf(String table, List<SinkRow> rows) {
+        SQLSinkHelper sqlSinkHelper = this.sqlSinkHelper;
+        if (table == null || sqlSinkHelper == null || rows.isEmpty()
+                || tableRateLimits.containsKey(table) || tableWeights.containsKey(table)) {
+            return table;
+        }
+        return sqlSinkHelper.buildTableKey(rows.get(0).values);
+    }
+
+    private long limitOf(String key) {
+        Long limit = tableRateLimits.get(key);
+        return limit != null ? limit : tableRateLimit;
+    }
+
+    /**
+     * Take the tokens of a chunk from both buckets, or none
+     * @return 0 if taken, otherwise the milliseconds to wait for them
+     */
+    private synchronized long tryTake(String key, int rows) {
+        long now = System.nanoTime();
+        if (now - pruned > PRUNE_INTERVAL_NANOS) {
+            pruneBuckets();
+            pruned = now;
+        }
+
+        TokenBucket tableBucket = tableBuckets.get(key);
+        if (tableBucket == null) {
+            tableBucket = new TokenBucket();
+            tableBuckets.put(key, tableBucket);
+        }
+
+        long sinkLimit = rateLimit;
+        long limit = limitOf(key);
+        long wait = Math.max(bucket.waitMillis(sinkLimit, rows), tableBucket.waitMillis(limit, rows));
+        if (wait == 0) {
+            bucket.take(sinkLimit, rows);
+            tableBucket.take(limit, rows);
+        }
+        return wait;
+    }
+
+    /**
+     * Drop the table buckets that filled up again, they are no different from new ones.
+     * Keeps the buckets of tables no longer written to from piling up.
+     */
+    synchronized void pruneBuckets() {
+        Iterator<Map.Entry<String, TokenBucket>> it = tableBuckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, TokenBucket> e = it.next();
+            if (e.getValue().isFull(limitOf(e.getKey()))) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int bucketCount() {
+        return tableBuckets.size();
+    }
+
+    /**
+     * A chunk of rows of one table, a view on the batch
+     */
+    static class Chunk {
+        final String table;
+        final List<SinkRow> rows;
+
+        Chunk(String table, List<SinkRow> rows) {
+            this.table = table;
+            this.rows = rows;
+        }
+    }
+
+    private static class Group implements Comparable<Group> {
+        final String table;
+        final String key;
+        final List<SinkRow> rows;
+        int position = 0;
+
+        Group(String table, String key, List<SinkRow> rows) {
+            this.table = table;
+            this.key = key;
+            this.rows = rows;
+        }
+
+        @Override
+        public int compareTo(Group other) {
+            return String.valueOf(table).compareTo(String.valueOf(other.table));
+        }
+    }
+
+    /**
+     * The chunks of one batch, handed out as the rate limits allow
+     */
+    class Round {
+        private final List<Group> queue;
+
+        Round(List<Group> queue) {
+            this.queue = queue;
+        }
+
+        /**
+         * Wait until a table may write its next chunk.
+         * When the thread is interrupted, e.g. on shutdown, the remaining chunks are handed out without waiting.
+         * @return the next chunk, or null when every row was handed out
+         */
+        Chunk next() {
+            while (!queue.isEmpty()) {
+                long shortestWait = Long.MAX_VALUE;
+
+                for (int i = 0; i < queue.size(); i++) {
+                    Group group = queue.get(i);
+                    int rows = group.rows.size() - group.position;
+                    if (chunkSize > 0) {
+                        Integer weight = tableWeights.get(group.key);
+                        rows = (int) Math.min(rows, (long) chunkSize * (weight != null ? weight : 1));
+                    }
+
+                    long wait = Thread.currentThread().isInterrupted() ? 0 : tryTake(group.key, rows);
+                    if (wait == 0) {
+                        Chunk chunk = new Chunk(group.table, group.rows.subList(group.position, group.position + rows));
+                        group.position += rows;
+                        queue.remove(i);
+                        if (group.position < group.rows.size()) {
+                            queue.add(group);
+                        }
+                        return chunk;
+                    }
+                    shortestWait = Math.min(shortestWait, wait);
+                }
+
+                try {
+                    Thread.sleep(shortestWait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Token bucket holding at most one second of tokens. The limit is given on every call so it can change
+     * at runtime. A chunk larger than the bucket waits for a full bucket and leaves it in debt.
+     */
+    private static class TokenBucket {
+        private double tokens = Double.MAX_VALUE;
+        private long refilled = System.nanoTime();
+
+        private void refill(long limit) {
+            long now = System.nanoTime();
+            tokens = Math.min(limit, tokens + (now - refilled) * (double) limit / 1000000000L);
+            refilled = now;
+        }
+
+        long waitMillis(long limit, int rows) {
+            if (limit <= 0) {
+                return 0;
+            }
+            refill(limit);
+            double needed = Math.min(rows, limit);
+            return tokens >= needed ? 0 : (long) Math.ceil((needed - tokens) * 1000 / limit);
+        }
+
+        boolean isFull(long limit) {
+            if (limit <= 0) {
+                return true;
+            }
+            refill(limit);
+            return tokens >= limit;
+        }
+
+        void take(long limit, int rows) {
+            if (limit > 0) {
+                tokens -= rows;
+            }
+        }
+    }
+}
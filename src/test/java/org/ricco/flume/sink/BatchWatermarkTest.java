@@ -0,0 +1,87 @@
+package org.ricco.flume.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.conf.ConfigurationException;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BatchWatermarkTest {
+
+	private static List<Event> events(int from, int to) {
+		List<Event> events = new ArrayList<>();
+		for (int i = from; i < to; i++) {
+			events.add(EventBuilder.withBody(("a," + i).getBytes(StandardCharsets.UTF_8),
+					Collections.singletonMap("id", "e" + i)));
+		}
+		return events;
+	}
+
+	private static SQLSinkHelper helper(String... properties) {
+		Map<String, String> context = new HashMap<>();
+		context.put("hibernate.connection.url", "jdbc:recording:watermark");
+		context.put("hibernate.connection.user", "sa");
+		context.put("hibernate.connection.password", "");
+		context.put("table.prefix", "t");
+		context.put("columns.to.insert", "a");
+		context.put("watermark.table", "wm");
+		for (int i = 0; i + 1 < properties.length; i += 2) {
+			context.put(properties[i], properties[i + 1]);
+		}
+		return new SQLSinkHelper(new Context(context));
+	}
+
+	@Test
+	public void eventIdFromHeader() {
+		Event event = events(0, 1).get(0);
+		assertEquals("e0", BatchWatermark.eventId(event, "id"));
+		assertNull(BatchWatermark.eventId(event, "missing"));
+		assertNull(BatchWatermark.eventId(event, null));
+	}
+
+	@Test
+	public void watermarkNeedsUniqueHeader() {
+		assertEquals("id", helper("watermark.header", "id").getWatermarkHeader());
+		try {
+			helper();
+			fail();
+		} catch (ConfigurationException expected) {
+		}
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void watermarkNeedsSingleConsumer() {
+		helper("watermark.header", "id", "consumer.threads", "2");
+	}
+
+	@Test
+	public void longerRedeliverySkipsAppliedPrefix() {
+		BatchWatermark applied = BatchWatermark.of("sink", "id", events(0, 20), 0, 20);
+		assertEquals("e0", applied.batchId);
+		assertEquals(20, applied.appliedEvents(events(0, 30)));
+		assertEquals(20, applied.appliedEvents(events(0, 20)));
+	}
+
+	@Test
+	public void shorterRedeliveryIsSkipped() {
+		BatchWatermark applied = BatchWatermark.of("sink", "id", events(0, 20), 0, 20);
+		assertEquals(10, applied.appliedEvents(events(0, 10)));
+	}
+
+	@Test
+	public void differentBatchIsNotSkipped() {
+		BatchWatermark applied = BatchWatermark.of("sink", "id", events(0, 20), 0, 20);
+		List<Event> changed = events(0, 30);
+		changed.set(5, events(50, 51).get(0));
+		assertEquals(0, applied.appliedEvents(changed));
+	}
+}
@@ -0,0 +1,70 @@
+package org.ricco.flume.sink;
+
+import java.util.Locale;
+
+import org.apache.flume.conf.ConfigurationException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ColumnTransformTest {
+
+	@Test
+	public void emptyDeclaration() {
+		assertNull(ColumnTransform.compile(" | "));
+	}
+
+	@Test
+	public void chain() {
+		ColumnTransform transform = ColumnTransform.compile("trim | upper | substring(0,3)");
+		assertEquals("ABC", transform.apply("  abcdef "));
+		assertEquals("AB", transform.apply("ab"));
+	}
+
+	@Test
+	public void unchangedValueIsNotCopied() {
+		String value = "abc";
+		assertSame(value, ColumnTransform.compile("trim|substring(0)").apply(value));
+	}
+
+	@Test
+	public void caseDoesNotDependOnLocale() {
+		Locale locale = Locale.getDefault();
+		Locale.setDefault(new Locale("tr", "TR"));
+		try {
+			assertEquals("ID", ColumnTransform.compile("TRIM|UPPER").apply("id"));
+			assertEquals("title", ColumnTransform.compile("lower").apply("TITLE"));
+		} finally {
+			Locale.setDefault(locale);
+		}
+	}
+
+	@Test
+	public void nullTokenAndDefault() {
+		ColumnTransform transform = ColumnTransform.compile("null(\\N)");
+		assertNull(transform.apply("\\N"));
+		assertEquals("x", transform.apply("x"));
+
+		transform = ColumnTransform.compile("null(\\N)|default(0)");
+		assertEquals("0", transform.apply("\\N"));
+		assertEquals("0", transform.apply(""));
+		assertEquals("7", transform.apply("7"));
+	}
+
+	@Test
+	public void date() {
+		ColumnTransform transform = ColumnTransform.compile("date(yyyyMMddHHmmss, yyyy-MM-dd HH:mm:ss)");
+		assertEquals("2017-03-04 05:06:07", transform.apply("20170304050607"));
+		assertEquals("not a date", transform.apply("not a date"));
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void unknownStep() {
+		ColumnTransform.compile("trim|reverse");
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void invalidBounds() {
+		ColumnTransform.compile("substring(5,2)");
+	}
+}
@@ -0,0 +1,42 @@
+package org.ricco.flume.sink;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionHealthManagerTest {
+
+	@Test
+	public void opensAfterThreshold() {
+		ConnectionHealthManager health = new ConnectionHealthManager(2, 60000, 60000, 0);
+
+		assertFalse(health.recordFailure());
+		assertTrue(health.allowRequest());
+		assertTrue(health.recordFailure());
+		assertFalse(health.allowRequest());
+	}
+
+	@Test
+	public void closesAfterBackoff() throws InterruptedException {
+		ConnectionHealthManager health = new ConnectionHealthManager(1, 50, 1000, 0);
+
+		assertTrue(health.recordFailure());
+		assertFalse(health.allowRequest());
+		Thread.sleep(100);
+		assertTrue(health.allowRequest());
+
+		health.recordSuccess();
+		assertTrue(health.allowRequest());
+	}
+
+	@Test
+	public void cachesValidation() {
+		ConnectionHealthManager health = new ConnectionHealthManager(1, 50, 1000, 60000);
+
+		assertTrue(health.needsValidation());
+		health.recordSuccess();
+		assertFalse(health.needsValidation());
+		health.recordFailure();
+		assertTrue(health.needsValidation());
+	}
+}
@@ -0,0 +1,81 @@
+package org.ricco.flume.sink;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.opencsv.CSVParser;
+
+import static org.junit.Assert.*;
+
+public class KeyFieldScanTest {
+
+	private static String keyFields(String record, int fields) {
+		byte[] body = record.getBytes(StandardCharsets.UTF_8);
+		return record.substring(0, BatchConsumer.keyFieldsLength(body, (byte) ',', fields));
+	}
+
+	@Test
+	public void plainAndQuotedFields() {
+		assertEquals("a,b", keyFields("a,b,c", 2));
+		assertEquals("\"a,b\"", keyFields("\"a,b\",c", 1));
+		assertEquals("a", keyFields("a\nb,c", 2));
+		assertEquals("a,b", keyFields("a,b", 3));
+	}
+
+	@Test
+	public void escapedQuoteDoesNotCloseField() throws IOException {
+		String record = "\"a\\\",b\",c";
+		assertEquals("\"a\\\",b\"", keyFields(record, 1));
+		assertArrayEquals(new String[] { "a\",b" }, new CSVParser(',').parseLine(keyFields(record, 1)));
+	}
+
+	@Test
+	public void escapeBeforeAFieldIsDropped() {
+		assertEquals("\\\"a,b\"", keyFields("\\\"a,b\",c", 1));
+	}
+
+	@Test
+	public void escapedEscapeClosesField() {
+		assertEquals("\"a\\\\\"", keyFields("\"a\\\\\",b", 1));
+	}
+
+	@Test
+	public void escapedDelimiterIsStillADelimiter() {
+		/* CSVParser only escapes quotes and escapes, the escape before anything else is dropped */
+		assertEquals("a\\", keyFields("a\\,b,c", 1));
+	}
+
+	@Test
+	public void trailingEscape() {
+		assertEquals("a,b\\", keyFields("a,b\\", 3));
+		assertEquals("\"a\\", keyFields("\"a\\", 1));
+	}
+
+	@Test
+	public void prefixParsesLikeWholeRecord() throws IOException {
+		Random random = new Random(11);
+		char[] alphabet = { 'a', ',', '"', '\\' };
+		for (int n = 0; n < 20000; n++) {
+			char[] record = new char[random.nextInt(9)];
+			for (int i = 0; i < record.length; i++) {
+				record[i] = alphabet[random.nextInt(alphabet.length)];
+			}
+			String line = new String(record);
+			String[] whole;
+			try {
+				whole = new CSVParser(',').parseLine(line);
+			} catch (IOException e) {
+				continue;
+			}
+			for (int fields = 1; fields <= whole.length; fields++) {
+				String[] prefix = new CSVParser(',').parseLine(keyFields(line, fields));
+				assertTrue(line, prefix.length >= fields);
+				assertArrayEquals(line, Arrays.copyOf(whole, fields), Arrays.copyOf(prefix, fields));
+			}
+		}
+	}
+}
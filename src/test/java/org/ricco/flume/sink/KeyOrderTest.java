@@ -0,0 +1,61 @@
+package org.ricco.flume.sink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class KeyOrderTest {
+
+	@Test
+	public void integersBeforeOtherValues() {
+		assertTrue(HibernateHelper.TableWork.compareKeys(null, "1") < 0);
+		assertTrue(HibernateHelper.TableWork.compareKeys("9", "10") < 0);
+		assertTrue(HibernateHelper.TableWork.compareKeys("10", "1a") < 0);
+		assertTrue(HibernateHelper.TableWork.compareKeys("100", "09") < 0);
+		assertTrue(HibernateHelper.TableWork.compareKeys("09", "1a") < 0);
+		assertEquals(0, HibernateHelper.TableWork.compareKeys("42", "42"));
+	}
+
+	@Test
+	public void mixedKeysAreSorted() {
+		Random random = new Random(7);
+		List<SinkRow> rows = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			String key;
+			switch (random.nextInt(4)) {
+			case 0:
+				key = String.valueOf(random.nextInt(100000));
+				break;
+			case 1:
+				key = "0" + random.nextInt(1000);
+				break;
+			case 2:
+				key = random.nextInt(1000) + "x";
+				break;
+			default:
+				key = random.nextInt(10) == 0 ? null : "";
+			}
+			rows.add(new SinkRow(new String[] { key }));
+		}
+		Collections.shuffle(rows, random);
+
+		int[] order = HibernateHelper.TableWork.sortedOrder(rows, Collections.singletonList(0),
+				new ColumnTransform[1], new int[] { 0 });
+		assertEquals(rows.size(), order.length);
+		/* every integer comes before the first other value */
+		boolean integers = true;
+		for (int r = 1; r < order.length; r++) {
+			String key = rows.get(order[r]).values[0];
+			assertTrue(HibernateHelper.TableWork.compareKeys(rows.get(order[r - 1]).values[0], key) <= 0);
+			if (key != null && !key.matches("0|[1-9][0-9]*")) {
+				integers = false;
+			}
+			assertFalse(!integers && key != null && key.matches("0|[1-9][0-9]*"));
+		}
+	}
+}
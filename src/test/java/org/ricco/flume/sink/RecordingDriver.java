@@ -0,0 +1,422 @@
+package org.ricco.flume.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory JDBC driver for the sink tests, so they run without a database server.<p>
+ * Every <tt>jdbc:recording:&lt;name&gt;</tt> url is a database of its own. Inserted rows are kept per table
+ * once their transaction commits, savepoints are honoured, and <tt>select ... from t where a = ? and b = ?</tt>
+ * reads them back. A database can be taken down, failing like a lost connection, or made to reject the
+ * inserts into a table, failing like a constraint violation.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+public class RecordingDriver implements Driver {
+
+	private static final String PREFIX = "jdbc:recording:";
+	private static final Pattern INSERT = Pattern.compile("(?i)insert into (\\S+?)\\s*\\((.*?)\\).*");
+	private static final Pattern SELECT = Pattern.compile("(?i)select (.*?) from (\\S+)(?: where (.*))?");
+	private static final Map<String, Database> DATABASES = new ConcurrentHashMap<>();
+
+	static {
+		try {
+			DriverManager.registerDriver(new RecordingDriver());
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Rows and failure switches of one database
+	 */
+	static class Database {
+		final Map<String, List<Map<String, Object>>> tables = new LinkedHashMap<>();
+		final Set<String> rejectedTables = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		volatile boolean down;
+
+		synchronized List<Map<String, Object>> rows(String table) {
+			List<Map<String, Object>> rows = tables.get(table);
+			return rows != null ? new ArrayList<>(rows) : new ArrayList<Map<String, Object>>();
+		}
+
+		synchronized int count() {
+			int count = 0;
+			for (List<Map<String, Object>> rows : tables.values()) {
+				count += rows.size();
+			}
+			return count;
+		}
+
+		private synchronized void insert(String table, List<Map<String, Object>> rows) {
+			List<Map<String, Object>> existing = tables.get(table);
+			if (existing == null) {
+				existing = new ArrayList<>();
+				tables.put(table, existing);
+			}
+			existing.addAll(rows);
+		}
+	}
+
+	/**
+	 * @return the database of a url, created empty on first use
+	 */
+	static Database database(String url) {
+		Database database = DATABASES.get(url);
+		if (database == null) {
+			DATABASES.putIfAbsent(url, new Database());
+			database = DATABASES.get(url);
+		}
+		return database;
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		Database database = database(url);
+		if (database.down) {
+			throw new SQLException("Connection refused", "08001");
+		}
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { Connection.class },
+				new ConnectionHandler(database));
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+
+	private static Object proxy(Class<?> type, InvocationHandler handler) {
+		return Proxy.newProxyInstance(RecordingDriver.class.getClassLoader(), new Class<?>[] { type }, handler);
+	}
+
+	/**
+	 * A pending insert of a transaction
+	 */
+	private static class Insert {
+		final String table;
+		final List<Map<String, Object>> rows;
+
+		Insert(String table, List<Map<String, Object>> rows) {
+			this.table = table;
+			this.rows = rows;
+		}
+	}
+
+	private static class ConnectionHandler implements InvocationHandler {
+		private final Database database;
+		private final List<Insert> pending = new ArrayList<>();
+		private boolean autoCommit = true;
+		private boolean closed = false;
+
+		ConnectionHandler(Database database) {
+			this.database = database;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			switch (name) {
+			case "close":
+				closed = true;
+				pending.clear();
+				return null;
+			case "isClosed":
+				return closed;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "RecordingConnection";
+			}
+
+			if (database.down) {
+				pending.clear();
+				if (name.equals("isValid")) {
+					return false;
+				}
+				throw new SQLException("Connection lost", "08S01");
+			}
+
+			switch (name) {
+			case "prepareStatement":
+			case "createStatement":
+				return proxy(PreparedStatement.class, new StatementHandler(this, args != null && args.length > 0 ? (String) args[0] : null));
+			case "getAutoCommit":
+				return autoCommit;
+			case "setAutoCommit":
+				autoCommit = (Boolean) args[0];
+				return null;
+			case "commit":
+				for (Insert insert : pending) {
+					database.insert(insert.table, insert.rows);
+				}
+				pending.clear();
+				return null;
+			case "rollback":
+				int size = args == null || args.length == 0 ? 0 : (Integer) ((Savepoint) args[0]).getSavepointId();
+				pending.subList(size, pending.size()).clear();
+				return null;
+			case "setSavepoint":
+				final int savepoint = pending.size();
+				return proxy(Savepoint.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return method.getName().equals("getSavepointId") ? savepoint : defaultValue(method.getReturnType());
+					}
+				});
+			case "isValid":
+				return true;
+			case "getMetaData":
+				return proxy(DatabaseMetaData.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getDatabaseProductName":
+							return "H2";
+						case "getDatabaseMajorVersion":
+							return 1;
+						case "getDatabaseMinorVersion":
+							return 4;
+						case "getDriverName":
+							return "recording";
+						case "getSQLKeywords":
+							return "";
+						case "supportsBatchUpdates":
+							return true;
+						}
+						if (method.getReturnType() == ResultSet.class) {
+							return resultSet(Collections.<Object[]>emptyList());
+						}
+						return defaultValue(method.getReturnType());
+					}
+				});
+			case "getTransactionIsolation":
+				return Connection.TRANSACTION_READ_COMMITTED;
+			}
+			return defaultValue(method.getReturnType());
+		}
+
+		void execute(String table, List<Map<String, Object>> rows) throws SQLException {
+			if (database.down) {
+				throw new SQLException("Connection lost", "08S01");
+			}
+			if (database.rejectedTables.contains(table)) {
+				throw new SQLException("Rejected by " + table, "23000");
+			}
+			if (autoCommit) {
+				database.insert(table, rows);
+			} else {
+				pending.add(new Insert(table, rows));
+			}
+		}
+	}
+
+	private static class StatementHandler implements InvocationHandler {
+		private final ConnectionHandler connection;
+		private final String sql;
+		private final Map<Integer, Object> parameters = new TreeMap<>();
+		private final List<Map<Integer, Object>> batch = new ArrayList<>();
+
+		StatementHandler(ConnectionHandler connection, String sql) {
+			this.connection = connection;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				parameters.put((Integer) args[0], name.equals("setNull") ? null : value(args[1]));
+				return null;
+			}
+			switch (name) {
+			case "addBatch":
+				batch.add(new TreeMap<>(parameters));
+				parameters.clear();
+				return null;
+			case "executeBatch":
+				int[] counts = new int[batch.size()];
+				Arrays.fill(counts, 1);
+				insert(new ArrayList<>(batch));
+				batch.clear();
+				return counts;
+			case "executeUpdate":
+				insert(Collections.<Map<Integer, Object>>singletonList(new TreeMap<>(parameters)));
+				parameters.clear();
+				return 1;
+			case "executeQuery":
+				return select(args != null && args.length > 0 ? (String) args[0] : sql);
+			case "execute":
+				return false;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			}
+			return defaultValue(method.getReturnType());
+		}
+
+		private void insert(List<Map<Integer, Object>> values) throws SQLException {
+			Matcher matcher = INSERT.matcher(sql);
+			if (!matcher.matches()) {
+				throw new SQLException("Unsupported statement " + sql, "42000");
+			}
+			String[] columns = matcher.group(2).split(",");
+			List<Map<String, Object>> rows = new ArrayList<>();
+			for (Map<Integer, Object> parameters : values) {
+				Map<String, Object> row = new LinkedHashMap<>();
+				for (int i = 0; i < columns.length; i++) {
+					row.put(columns[i].trim(), parameters.get(i + 1));
+				}
+				rows.add(row);
+			}
+			connection.execute(matcher.group(1), rows);
+		}
+
+		private ResultSet select(String query) throws SQLException {
+			Matcher matcher = SELECT.matcher(query.trim());
+			if (!matcher.matches()) {
+				throw new SQLException("Unsupported query " + query, "42000");
+			}
+			Map<String, Object> conditions = new HashMap<>();
+			if (matcher.group(3) != null) {
+				int parameter = 1;
+				for (String condition : matcher.group(3).split("(?i) and ")) {
+					conditions.put(condition.split("=")[0].trim(), parameters.get(parameter++));
+				}
+			}
+			String[] columns = matcher.group(1).split(",");
+			List<Object[]> result = new ArrayList<>();
+			for (Map<String, Object> row : connection.database.rows(matcher.group(2))) {
+				boolean match = true;
+				for (Map.Entry<String, Object> condition : conditions.entrySet()) {
+					match &= String.valueOf(condition.getValue()).equals(String.valueOf(row.get(condition.getKey())));
+				}
+				if (match) {
+					Object[] values = new Object[columns.length];
+					for (int i = 0; i < columns.length; i++) {
+						values[i] = row.get(columns[i].trim());
+					}
+					result.add(values);
+				}
+			}
+			return resultSet(result);
+		}
+
+		private static Object value(Object value) throws IOException {
+			if (value instanceof byte[]) {
+				return new String((byte[]) value, StandardCharsets.UTF_8);
+			}
+			if (value instanceof InputStream) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				for (int n; (n = ((InputStream) value).read(buffer)) >= 0;) {
+					out.write(buffer, 0, n);
+				}
+				return new String(out.toByteArray(), StandardCharsets.UTF_8);
+			}
+			if (value instanceof Reader) {
+				StringBuilder text = new StringBuilder();
+				char[] buffer = new char[4096];
+				for (int n; (n = ((Reader) value).read(buffer)) >= 0;) {
+					text.append(buffer, 0, n);
+				}
+				return text.toString();
+			}
+			return value;
+		}
+	}
+
+	private static ResultSet resultSet(final List<Object[]> rows) {
+		return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+			private int row = -1;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "next":
+					return ++row < rows.size();
+				case "getString":
+					Object value = rows.get(row)[(Integer) args[0] - 1];
+					return value != null ? value.toString() : null;
+				case "getInt":
+					Object number = rows.get(row)[(Integer) args[0] - 1];
+					return number != null ? Integer.parseInt(number.toString()) : 0;
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+}
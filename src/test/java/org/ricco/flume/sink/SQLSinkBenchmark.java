@@ -0,0 +1,440 @@
+package org.ricco.flume.sink;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.apache.flume.lifecycle.LifecycleState;
+
+/**
+ * End-to-end throughput benchmark of {@link SQLSink}.<p>
+ * Feeds synthetic CSV events through a real {@link MemoryChannel} into an embedded H2 database
+ * and reports rows/s, p50/p99 batch latency, allocation rate and GC time for every scenario.
+ * Run it with the <tt>benchmark</tt> profile, which adds H2 to the test classpath:
+ * <pre>
+ *   mvn -Pbenchmark test-compile exec:java
+ * </pre>
+ * System properties:
+ * <tt>bench.events</tt> events per scenario (default 200000),
+ * <tt>bench.url</tt> JDBC url of the target database (default an in-memory H2 database),
+ * <tt>bench.matrix</tt> scenarios separated by <tt>;</tt>, each a comma separated list of
+ * <tt>key=value</tt> pairs. Keys <tt>width</tt> (columns per row), <tt>fanout</tt> (distinct tables)
+ * and <tt>skew</tt> (days the event time is spread over, every day is a table of its own) drive the
+ * generator, any other key is passed to the sink configuration.<p>
+ * Only the events of committed channel transactions are counted, and the batch latency is the time
+ * from the begin to the commit of such a transaction, on the runner thread and on the consumer workers alike.
+ *
+ * @author <a href="mailto:riccosir@qq.com">Ricco</a>
+ */
+public class SQLSinkBenchmark {
+
+	private static final String DEFAULT_URL = "jdbc:h2:mem:bench;DB_CLOSE_DELAY=-1";
+	private static final String DEFAULT_MATRIX =
+			"batch.size=1000,width=10,fanout=1,skew=1;"
+			+ "batch.size=10000,width=10,fanout=1,skew=1;"
+			+ "batch.size=10000,width=10,fanout=16,skew=1;"
+			+ "batch.size=10000,width=40,fanout=16,skew=7;"
+			+ "batch.size=10000,width=10,fanout=16,skew=1,consumer.threads=4";
+	private static final String DATE_FORMAT = "yyyyMMdd";
+	private static final int PRODUCER_BATCH = 1000;
+
+	public static void main(String[] args) throws Exception {
+
+		long events = Long.getLong("bench.events", 200000);
+		String url = System.getProperty("bench.url", DEFAULT_URL);
+		String matrix = System.getProperty("bench.matrix", DEFAULT_MATRIX);
+
+		System.out.println(String.format("%-70s %10s %10s %8s %8s %10s %8s",
+				"scenario", "rows", "rows/s", "p50 ms", "p99 ms", "alloc MB/s", "GC ms"));
+
+		int run = 0;
+		for (String scenario : matrix.split(";")) {
+			if (scenario.trim().length() > 0) {
+				Result result = runScenario("bench" + run++, url, parse(scenario), events);
+				System.out.println(String.format("%-70s %10d %10.0f %8s %8s %10.1f %8d",
+						scenario.trim(), result.rows, result.rows * 1000.0 / result.elapsed,
+						result.percentile(50), result.percentile(99),
+						result.allocated / 1048576.0 * 1000 / result.elapsed, result.gcTime));
+			}
+		}
+	}
+
+	private static Map<String, String> parse(String scenario) {
+		Map<String, String> values = new LinkedHashMap<>();
+		for (String pair : scenario.split(",")) {
+			String[] keyValue = pair.split("=", 2);
+			values.put(keyValue[0].trim(), keyValue.length > 1 ? keyValue[1].trim() : "");
+		}
+		return values;
+	}
+
+	private static Result runScenario(String name, String url, Map<String, String> scenario, long events)
+			throws Exception {
+
+		Map<String, String> sinkProperties = new HashMap<>(scenario);
+		int width = Math.max(2, Integer.parseInt(remove(sinkProperties, "width", "10")));
+		int fanout = Math.max(1, Integer.parseInt(remove(sinkProperties, "fanout", "1")));
+		int skew = Math.max(1, Integer.parseInt(remove(sinkProperties, "skew", "1")));
+
+		EventGenerator generator = new EventGenerator(width, fanout, skew);
+		createTables(url, name, generator);
+
+		StringBuilder columns = new StringBuilder();
+		for (int i = 1; i <= width; i++) {
+			columns.append(i > 1 ? "," : "").append("c").append(i);
+		}
+
+		Map<String, String> properties = new HashMap<>();
+		properties.put("hibernate.connection.url", url);
+		properties.put("hibernate.connection.user", "sa");
+		properties.put("hibernate.connection.password", "");
+		properties.put("hibernate.connection.driver_class", "org.h2.Driver");
+		properties.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		properties.put("hibernate.connection.pool_size", "16");
+		properties.put("table.prefix", name + "_@1_#");
+		properties.put("table.time.column", "2");
+		properties.put("table.formatter", DATE_FORMAT);
+		properties.put("columns.to.insert", columns.toString());
+		properties.putAll(sinkProperties);
+
+		MemoryChannel memoryChannel = new MemoryChannel();
+		Map<String, String> channelProperties = new HashMap<>();
+		channelProperties.put("capacity", "200000");
+		channelProperties.put("transactionCapacity", "200000");
+		channelProperties.put("keep-alive", "0");
+		Configurables.configure(memoryChannel, new Context(channelProperties));
+		memoryChannel.start();
+		CountingChannel channel = new CountingChannel(memoryChannel);
+
+		SQLSink sink = new SQLSink();
+		sink.setName(name);
+		sink.setChannel(channel);
+		sink.configure(new Context(properties));
+		sink.start();
+		boolean workers = sink.getSqlSinkHelper().getConsumerThreads() > 1;
+
+		/* Warm up until the sink is connected and has written one event */
+		generator.put(channel, 1);
+		while (channel.committed.get() < 1) {
+			if (!workers) {
+				sink.process();
+			}
+			Thread.sleep(10);
+		}
+		channel.committed.set(0);
+		channel.latencies.clear();
+
+		Producer producer = new Producer(generator, channel, events);
+		Thread producerThread = new Thread(producer, name + "-producer");
+
+		long gcBefore = gcTime();
+		long allocatedBefore = allocatedBytes();
+		long start = System.currentTimeMillis();
+		producerThread.start();
+
+		while (channel.committed.get() < events && producer.error == null) {
+			if (workers) {
+				Thread.sleep(5);
+			} else if (sink.process() == Status.BACKOFF) {
+				Thread.sleep(1);
+			}
+		}
+
+		long allocated = allocatedBytes() - allocatedBefore;
+		/* Stopping waits for the in-flight batches of the workers */
+		sink.stop();
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		long gc = gcTime() - gcBefore;
+
+		producerThread.join();
+		memoryChannel.stop();
+		if (producer.error != null) {
+			throw producer.error;
+		}
+
+		Result result = new Result();
+		/* Leave the warm up event out */
+		result.rows = countRows(url, name, generator) - 1;
+		result.elapsed = elapsed;
+		result.allocated = allocated;
+		result.gcTime = gc;
+		result.latencies = new ArrayList<>(channel.latencies);
+		return result;
+	}
+
+	private static String remove(Map<String, String> properties, String key, String defaultValue) {
+		String value = properties.remove(key);
+		return value != null ? value : defaultValue;
+	}
+
+	private static void createTables(String url, String name, EventGenerator generator) throws SQLException {
+		try (Connection connection = DriverManager.getConnection(url, "sa", "");
+			 Statement statement = connection.createStatement()) {
+			for (String table : generator.tables(name)) {
+				StringBuilder ddl = new StringBuilder("create table if not exists " + table + " (");
+				for (int i = 1; i <= generator.width; i++) {
+					ddl.append(i > 1 ? "," : "").append("c").append(i).append(" varchar(64)");
+				}
+				statement.execute(ddl.append(")").toString());
+			}
+		}
+	}
+
+	private static long countRows(String url, String name, EventGenerator generator) throws SQLException {
+		long rows = 0;
+		try (Connection connection = DriverManager.getConnection(url, "sa", "");
+			 Statement statement = connection.createStatement()) {
+			for (String table : generator.tables(name)) {
+				try (ResultSet resultSet = statement.executeQuery("select count(*) from " + table)) {
+					resultSet.next();
+					rows += resultSet.getLong(1);
+				}
+			}
+		}
+		return rows;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(0, gc.getCollectionTime());
+		}
+		return time;
+	}
+
+	/**
+	 * Bytes allocated so far by the live threads, only available on HotSpot based JVMs
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return 0;
+		}
+		long total = 0;
+		for (long allocated : ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, allocated);
+		}
+		return total;
+	}
+
+	/**
+	 * Synthetic CSV events: table key, event day, then filler columns up to the row width
+	 */
+	private static class EventGenerator {
+		private final int width;
+		private final int fanout;
+		private final int skew;
+		private final long baseTime;
+		private final Random random = new Random(42);
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+		private long sequence = 0;
+
+		EventGenerator(int width, int fanout, int skew) {
+			this.width = width;
+			this.fanout = fanout;
+			this.skew = skew;
+			this.baseTime = System.currentTimeMillis() - skew * 86400000L;
+		}
+
+		List<String> tables(String name) {
+			List<String> tables = new ArrayList<>();
+			for (int table = 0; table < fanout; table++) {
+				for (int day = 0; day < skew; day++) {
+					tables.add(name + "_t" + table + "_" + dateFormat.format(new Date(baseTime + day * 86400000L)));
+				}
+			}
+			return tables;
+		}
+
+		Event next() {
+			StringBuilder body = new StringBuilder(width * 12);
+			body.append('t').append(random.nextInt(fanout)).append(',');
+			body.append(dateFormat.format(new Date(baseTime + random.nextInt(skew) * 86400000L)));
+			for (int i = 2; i < width; i++) {
+				body.append(',').append("v").append(sequence).append('_').append(i);
+			}
+			sequence++;
+			return EventBuilder.withBody(body.toString().getBytes(StandardCharsets.UTF_8));
+		}
+
+		void put(Channel channel, int count) {
+			Transaction transaction = channel.getTransaction();
+			transaction.begin();
+			try {
+				for (int i = 0; i < count; i++) {
+					channel.put(next());
+				}
+				transaction.commit();
+			} catch (RuntimeException e) {
+				transaction.rollback();
+				throw e;
+			} finally {
+				transaction.close();
+			}
+		}
+	}
+
+	private static class Producer implements Runnable {
+		private final EventGenerator generator;
+		private final Channel channel;
+		private final long events;
+		private volatile Exception error;
+
+		Producer(EventGenerator generator, Channel channel, long events) {
+			this.generator = generator;
+			this.channel = channel;
+			this.events = events;
+		}
+
+		@Override
+		public void run() {
+			long produced = 0;
+			try {
+				while (produced < events) {
+					int count = (int) Math.min(PRODUCER_BATCH, events - produced);
+					try {
+						generator.put(channel, count);
+						produced += count;
+					} catch (ChannelException e) {
+						/* Channel full, let the sink catch up */
+						Thread.sleep(5);
+					}
+				}
+			} catch (Exception e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Channel counting the events the sink took and committed, and timing its transactions.
+	 * Events of rolled back transactions are taken again later, so they are not counted.
+	 */
+	private static class CountingChannel implements Channel {
+		private final Channel channel;
+		private final AtomicLong committed = new AtomicLong();
+		private final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+		/* Events taken and begin time of the transaction of the calling thread */
+		private final ThreadLocal<long[]> current = new ThreadLocal<>();
+
+		CountingChannel(Channel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void put(Event event) throws ChannelException {
+			channel.put(event);
+		}
+
+		@Override
+		public Event take() throws ChannelException {
+			Event event = channel.take();
+			long[] transaction = current.get();
+			if (event != null && transaction != null) {
+				transaction[0]++;
+			}
+			return event;
+		}
+
+		@Override
+		public Transaction getTransaction() {
+			final Transaction transaction = channel.getTransaction();
+			return new Transaction() {
+				@Override
+				public void begin() {
+					transaction.begin();
+					current.set(new long[] { 0, System.nanoTime() });
+				}
+
+				@Override
+				public void commit() {
+					transaction.commit();
+					long[] taken = current.get();
+					if (taken != null && taken[0] > 0) {
+						committed.addAndGet(taken[0]);
+						latencies.add(System.nanoTime() - taken[1]);
+					}
+					current.remove();
+				}
+
+				@Override
+				public void rollback() {
+					transaction.rollback();
+					current.remove();
+				}
+
+				@Override
+				public void close() {
+					transaction.close();
+				}
+			};
+		}
+
+		@Override
+		public void start() {
+			channel.start();
+		}
+
+		@Override
+		public void stop() {
+			channel.stop();
+		}
+
+		@Override
+		public LifecycleState getLifecycleState() {
+			return channel.getLifecycleState();
+		}
+
+		@Override
+		public void setName(String name) {
+			channel.setName(name);
+		}
+
+		@Override
+		public String getName() {
+			return channel.getName();
+		}
+	}
+
+	private static class Result {
+		long rows;
+		long elapsed;
+		long allocated;
+		long gcTime;
+		List<Long> latencies;
+
+		String percentile(int percentile) {
+			if (latencies == null || latencies.isEmpty()) {
+				return "-";
+			}
+			List<Long> sorted = new ArrayList<>(latencies);
+			Collections.sort(sorted);
+			int index = Math.min(sorted.size() - 1, (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1);
+			return String.format("%.1f", sorted.get(Math.max(0, index)) / 1000000.0);
+		}
+	}
+}
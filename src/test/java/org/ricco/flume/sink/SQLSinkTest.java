@@ -0,0 +1,221 @@
+package org.ricco.flume.sink;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.flume.Channel;
+import org.apache.flume.Context;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.conf.Configurables;
+import org.apache.flume.event.EventBuilder;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SQLSinkTest {
+
+	private SQLSink sink;
+	private MemoryChannel channel;
+
+	static MemoryChannel memoryChannel(String... properties) {
+		Map<String, String> context = new HashMap<>();
+		context.put("capacity", "10000");
+		for (int i = 0; i + 1 < properties.length; i += 2) {
+			context.put(properties[i], properties[i + 1]);
+		}
+		MemoryChannel channel = new MemoryChannel();
+		Configurables.configure(channel, new Context(context));
+		channel.start();
+		return channel;
+	}
+
+	static SQLSink sink(String database, Channel channel, String... properties) {
+		Map<String, String> context = new HashMap<>();
+		context.put("hibernate.connection.url", "jdbc:recording:" + database);
+		context.put("hibernate.connection.user", "sa");
+		context.put("hibernate.connection.password", "");
+		context.put("hibernate.connection.driver_class", RecordingDriver.class.getName());
+		context.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+		context.put("table.prefix", "t_@1");
+		context.put("columns.to.insert", "a,b");
+		for (int i = 0; i + 1 < properties.length; i += 2) {
+			context.put(properties[i], properties[i + 1]);
+		}
+		SQLSink sink = new SQLSink();
+		sink.setName(database);
+		sink.setChannel(channel);
+		sink.configure(new Context(context));
+		sink.start();
+		return sink;
+	}
+
+	/**
+	 * Put the events "k&lt;i % tables&gt;,i", with header seq i, in transactions of at most 50 events
+	 */
+	static void put(Channel channel, int from, int to, int tables) {
+		for (int start = from; start < to; start += 50) {
+			Transaction transaction = channel.getTransaction();
+			transaction.begin();
+			for (int i = start; i < Math.min(to, start + 50); i++) {
+				channel.put(EventBuilder.withBody(("k" + i % tables + "," + i).getBytes(StandardCharsets.UTF_8),
+						Collections.singletonMap("seq", String.valueOf(i))));
+			}
+			transaction.commit();
+			transaction.close();
+		}
+	}
+
+	/**
+	 * @return the distinct values of column b written to the t_ tables
+	 */
+	static Set<Object> written(RecordingDriver.Database database) {
+		Set<Object> values = new HashSet<>();
+		for (String table : tables(database)) {
+			for (Map<String, Object> row : database.rows(table)) {
+				values.add(row.get("b"));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return the rows written to the t_ tables
+	 */
+	static int rows(RecordingDriver.Database database) {
+		int rows = 0;
+		for (String table : tables(database)) {
+			rows += database.rows(table).size();
+		}
+		return rows;
+	}
+
+	private static Set<String> tables(RecordingDriver.Database database) {
+		Set<String> tables = new HashSet<>();
+		synchronized (database) {
+			for (String table : database.tables.keySet()) {
+				if (table.startsWith("t_")) {
+					tables.add(table);
+				}
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Run the sink until every event up to the given one is written
+	 */
+	private void processUntilWritten(RecordingDriver.Database database, int events) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (written(database).size() < events && System.currentTimeMillis() < deadline) {
+			sink.process();
+			Thread.sleep(10);
+		}
+		assertEquals(events, written(database).size());
+	}
+
+	@After
+	public void tearDown() {
+		if (sink != null) {
+			sink.stop();
+		}
+		if (channel != null) {
+			channel.stop();
+		}
+	}
+
+	@Test
+	public void batchStopsAtChannelTransactionCapacity() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:capacity");
+		/* transactionCapacity left at its default of 100, batch.size at its default of 10000 */
+		channel = memoryChannel();
+		sink = sink("capacity", channel);
+		put(channel, 0, 250, 2);
+
+		processUntilWritten(database, 250);
+		assertEquals(250, rows(database));
+	}
+
+	@Test
+	public void redeliveryWithSmallerBatchesIsSkipped() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:redelivery");
+		channel = memoryChannel();
+		sink = sink("redelivery", channel, "batch.size", "40", "watermark.table", "wm", "watermark.header", "seq");
+		put(channel, 0, 100, 2);
+		processUntilWritten(database, 100);
+		sink.stop();
+
+		/* Delivered again, as after a crash before the channel commit, then new events */
+		put(channel, 0, 120, 2);
+		sink = sink("redelivery", channel, "batch.size", "25", "watermark.table", "wm", "watermark.header", "seq");
+		processUntilWritten(database, 120);
+
+		assertEquals(120, rows(database));
+		assertEquals(Status.BACKOFF, sink.process());
+		assertEquals(120, rows(database));
+	}
+
+	@Test
+	public void mirrorSharingWatermarkTableWritesItsRows() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:sharedwm");
+		channel = memoryChannel();
+		sink = sink("sharedwm", channel, "watermark.table", "wm", "watermark.header", "seq");
+		put(channel, 0, 50, 2);
+		processUntilWritten(database, 50);
+		sink.stop();
+
+		/* Delivered again to the primary database and a mirror keeping its watermarks in the same table */
+		put(channel, 0, 50, 2);
+		sink = sink("sharedwm", channel, "watermark.table", "wm", "watermark.header", "seq",
+				"mirrors", "m", "mirror.m.table.prefix", "m_@1");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (database.rows("m_k0").size() + database.rows("m_k1").size() < 50 && System.currentTimeMillis() < deadline) {
+			sink.process();
+			Thread.sleep(10);
+		}
+
+		assertEquals(50, database.rows("m_k0").size() + database.rows("m_k1").size());
+		assertEquals(50, rows(database));
+		assertEquals(2, database.rows("wm").size());
+	}
+
+	@Test
+	public void failedWatermarkReturnsBatch() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:wmfailure");
+		database.rejectedTables.add("wm");
+		channel = memoryChannel();
+		sink = sink("wmfailure", channel, "watermark.table", "wm", "watermark.header", "seq");
+		put(channel, 0, 50, 2);
+
+		long deadline = System.currentTimeMillis() + 2000;
+		while (System.currentTimeMillis() < deadline) {
+			sink.process();
+			Thread.sleep(10);
+		}
+		assertEquals(0, rows(database));
+
+		database.rejectedTables.remove("wm");
+		processUntilWritten(database, 50);
+		assertEquals(50, rows(database));
+	}
+
+	@Test
+	public void rejectedTableLosesOnlyItsRecords() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:rejected");
+		database.rejectedTables.add("t_k1");
+		channel = memoryChannel();
+		sink = sink("rejected", channel, "watermark.table", "wm", "watermark.header", "seq");
+		put(channel, 0, 50, 2);
+
+		processUntilWritten(database, 25);
+		assertEquals(Status.BACKOFF, sink.process());
+		assertEquals(25, rows(database));
+		assertEquals(1, database.rows("wm").size());
+	}
+}
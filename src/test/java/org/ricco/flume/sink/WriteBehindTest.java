@@ -0,0 +1,97 @@
+package org.ricco.flume.sink;
+
+import org.apache.flume.channel.MemoryChannel;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static org.ricco.flume.sink.SQLSinkTest.*;
+
+public class WriteBehindTest {
+
+	private SQLSink sink;
+	private MemoryChannel channel;
+
+	@After
+	public void tearDown() {
+		if (sink != null) {
+			sink.stop();
+		}
+		if (channel != null) {
+			channel.stop();
+		}
+	}
+
+	/**
+	 * Wait for the consumer worker to write the given number of rows
+	 */
+	private static void awaitRows(RecordingDriver.Database database, int expected) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 15000;
+		while (rows(database) < expected && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(expected, rows(database));
+	}
+
+	@Test
+	public void tableWrittenOnceItBuffersEnoughRows() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:wbrows");
+		channel = memoryChannel();
+		sink = sink("wbrows", channel, "write.behind.rows", "30", "write.behind.age", "60000");
+
+		put(channel, 0, 100, 2);
+		awaitRows(database, 100);
+		assertEquals(50, database.rows("t_k0").size());
+		assertEquals(50, database.rows("t_k1").size());
+	}
+
+	@Test
+	public void everyTableWrittenOnceTheBufferIsOld() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:wbage");
+		channel = memoryChannel();
+		sink = sink("wbage", channel, "write.behind.rows", "1000", "write.behind.age", "500");
+
+		put(channel, 0, 20, 2);
+		awaitRows(database, 20);
+	}
+
+	@Test
+	public void defaultMaxEventsFitsDefaultChannel() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:wbdefault");
+		/* transactionCapacity left at its default of 100 */
+		channel = memoryChannel();
+		sink = sink("wbdefault", channel, "write.behind.rows", "1000", "write.behind.age", "60000");
+		assertEquals(100, sink.getSqlSinkHelper().getWriteBehindMaxEvents());
+
+		put(channel, 0, 250, 2);
+		awaitRows(database, 200);
+	}
+
+	@Test
+	public void bufferWrittenWhenTheTakeListIsFull() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:wbfull");
+		channel = memoryChannel("transactionCapacity", "20");
+		sink = sink("wbfull", channel, "write.behind.rows", "1000", "write.behind.age", "60000");
+
+		for (int i = 0; i < 60; i += 20) {
+			put(channel, i, i + 20, 2);
+		}
+		awaitRows(database, 60);
+	}
+
+	@Test
+	public void bufferWrittenOnStop() throws Exception {
+		RecordingDriver.Database database = RecordingDriver.database("jdbc:recording:wbstop");
+		channel = memoryChannel();
+		sink = sink("wbstop", channel, "write.behind.rows", "1000", "write.behind.age", "60000");
+
+		put(channel, 0, 20, 2);
+		/* Let the worker connect and buffer the events */
+		Thread.sleep(3500);
+		assertEquals(0, rows(database));
+
+		sink.stop();
+		sink = null;
+		assertEquals(20, rows(database));
+	}
+}
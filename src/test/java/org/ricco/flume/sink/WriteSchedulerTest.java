@@ -0,0 +1,166 @@
+package org.ricco.flume.sink;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Context;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WriteSchedulerTest {
+
+	private static WriteScheduler scheduler(String... properties) {
+		Map<String, String> context = new HashMap<>();
+		context.put("hibernate.connection.url", "jdbc:recording:scheduler");
+		context.put("hibernate.connection.user", "sa");
+		context.put("hibernate.connection.password", "");
+		context.put("table.prefix", "t_@1");
+		context.put("columns.to.insert", "a,b");
+		for (int i = 0; i + 1 < properties.length; i += 2) {
+			context.put(properties[i], properties[i + 1]);
+		}
+		WriteScheduler scheduler = new WriteScheduler();
+		scheduler.configure(new SQLSinkHelper(new Context(context)));
+		return scheduler;
+	}
+
+	/**
+	 * Rows "key,day" grouped under the given table name
+	 */
+	private static Map<String, List<SinkRow>> group(Map<String, List<SinkRow>> groups, String table,
+			String key, String day, int rows) {
+		List<SinkRow> group = new ArrayList<>();
+		for (int i = 0; i < rows; i++) {
+			group.add(new SinkRow(new String[] { key, day }));
+		}
+		groups.put(table, group);
+		return groups;
+	}
+
+	private static Map<String, List<SinkRow>> group(String table, String key, int rows) {
+		return group(new LinkedHashMap<String, List<SinkRow>>(), table, key, "20260101", rows);
+	}
+
+	private static long millis(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	@Test
+	public void bucketRefillsAtTheLimit() {
+		WriteScheduler scheduler = scheduler("rate.limit", "1000", "write.chunk.size", "500");
+		WriteScheduler.Round round = scheduler.schedule(group("t_a", "a", 1500));
+
+		long start = System.nanoTime();
+		assertEquals(500, round.next().rows.size());
+		assertEquals(500, round.next().rows.size());
+		assertTrue(millis(start) < 200);
+
+		/* The bucket holds one second of tokens, the third chunk waits for half of them */
+		assertEquals(500, round.next().rows.size());
+		long waited = millis(start);
+		assertTrue(String.valueOf(waited), waited >= 400 && waited < 2000);
+		assertNull(round.next());
+	}
+
+	@Test
+	public void chunkIsWeighted() {
+		WriteScheduler scheduler = scheduler("write.chunk.size", "10", "table.weight.t_a", "3");
+		Map<String, List<SinkRow>> groups = group("t_a", "a", 100);
+		group(groups, "t_b", "b", "20260101", 100);
+		WriteScheduler.Round round = scheduler.schedule(groups);
+
+		Map<String, Integer> chunks = new HashMap<>();
+		for (int i = 0; i < 2; i++) {
+			WriteScheduler.Chunk chunk = round.next();
+			chunks.put(chunk.table, chunk.rows.size());
+		}
+		assertEquals(Integer.valueOf(30), chunks.get("t_a"));
+		assertEquals(Integer.valueOf(10), chunks.get("t_b"));
+	}
+
+	@Test
+	public void tablesTakeTurns() {
+		WriteScheduler scheduler = scheduler("write.chunk.size", "10");
+		Map<String, List<SinkRow>> groups = group("t_a", "a", 20);
+		group(groups, "t_b", "b", "20260101", 20);
+		group(groups, "t_c", "c", "20260101", 20);
+
+		List<String> tables = new ArrayList<>();
+		WriteScheduler.Round round = scheduler.schedule(groups);
+		for (WriteScheduler.Chunk chunk = round.next(); chunk != null; chunk = round.next()) {
+			tables.add(chunk.table);
+		}
+		assertEquals(6, tables.size());
+		assertEquals(tables.subList(0, 3), tables.subList(3, 6));
+		assertEquals(3, new HashSet<>(tables.subList(0, 3)).size());
+
+		/* The next batch starts with the next table */
+		assertEquals(tables.get(1), scheduler.schedule(groups).next().table);
+		assertEquals(tables.get(2), scheduler.schedule(groups).next().table);
+	}
+
+	@Test
+	public void datedTablesShareTheirConfiguration() {
+		WriteScheduler scheduler = scheduler("table.prefix", "t_@1_#", "table.time.column", "2", "table.formatter", "yyyyMMdd",
+				"write.chunk.size", "10", "table.weight.t_a_#", "3", "rate.limit.table.t_a_#", "100");
+		Map<String, List<SinkRow>> today = group(new HashMap<String, List<SinkRow>>(), "t_a_20260101", "a", "20260101", 30);
+		Map<String, List<SinkRow>> tomorrow = group(new HashMap<String, List<SinkRow>>(), "t_a_20260102", "a", "20260102", 100);
+
+		long start = System.nanoTime();
+		assertEquals(30, scheduler.schedule(today).next().rows.size());
+		WriteScheduler.Round round = scheduler.schedule(tomorrow);
+		assertEquals(30, round.next().rows.size());
+		assertEquals(30, round.next().rows.size());
+		assertTrue(millis(start) < 200);
+
+		/* Both days drew on the same bucket of 100 rows per second */
+		assertEquals(30, round.next().rows.size());
+		assertTrue(millis(start) >= 150);
+		assertEquals(1, scheduler.bucketCount());
+	}
+
+	@Test
+	public void bucketsOfIdleTablesArePruned() {
+		WriteScheduler scheduler = scheduler("rate.limit.table", "100");
+		scheduler.schedule(group("t_a", "a", 100)).next();
+		scheduler.schedule(group("t_b", "b", 1)).next();
+		assertEquals(2, scheduler.bucketCount());
+
+		/* t_b refills its single row almost at once, t_a needs a second */
+		long start = System.nanoTime();
+		while (scheduler.bucketCount() > 1 && millis(start) < 500) {
+			scheduler.pruneBuckets();
+		}
+		assertEquals(1, scheduler.bucketCount());
+
+		scheduler.setTableRateLimit(0);
+		assertEquals(0, scheduler.getTableRateLimit());
+		scheduler.pruneBuckets();
+		assertEquals(0, scheduler.bucketCount());
+	}
+
+	@Test
+	public void limitChangesApplyAtOnce() {
+		WriteScheduler scheduler = scheduler("rate.limit", "100");
+		assertEquals(100, scheduler.getRateLimit());
+		assertEquals(100, scheduler.schedule(group("t_a", "a", 100)).next().rows.size());
+
+		scheduler.setRateLimit(0);
+		assertEquals(0, scheduler.getRateLimit());
+		long start = System.nanoTime();
+		assertEquals(100, scheduler.schedule(group("t_a", "a", 100)).next().rows.size());
+		assertTrue(millis(start) < 200);
+
+		scheduler.setRateLimit(50);
+		scheduler.setTableRateLimit(1000);
+		WriteScheduler.Round round = scheduler.schedule(group("t_a", "a", 100));
+		start = System.nanoTime();
+		round.next();
+		assertTrue(millis(start) >= 500);
+	}
+}